@@ -0,0 +1,263 @@
+package me.norax.nyaBackup;
+
+import me.norax.nyaBackup.helpers.Logger;
+import me.norax.nyaBackup.methods.Compressor;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+
+/**
+ * Everything known about the backups in {@code backups/}, kept in memory and in
+ * {@code catalog.log}, so commands never have to list or stat the backup folder.
+ * <p>
+ * The log is append-only: every change is one line, written and synced before
+ * the call returns, so a crash can at most lose the line being written. It is
+ * rewritten without the removed backups whenever it loads, and checked against
+ * the backup folder once at startup in case backups were copied in or deleted by hand.
+ * Backups that are stored offsite stay in the catalog after their local file was evicted.
+ */
+public class BackupCatalog {
+    private static final String HEADER = "nyabackup-catalog:1";
+
+    private final Path backupDir;
+    private final Path logFile;
+    private final Map<String, Entry> entries = new LinkedHashMap<>();
+    private final Set<String> remote = new HashSet<>();
+    private final Set<String> evicted = new HashSet<>();
+    private long storeSize;
+
+    public BackupCatalog(NyaBackup plugin, Predicate<String> isBackupFile) {
+        this.backupDir = plugin.getDataFolder().toPath().resolve("backups");
+        this.logFile = plugin.getDataFolder().toPath().resolve("catalog.log");
+
+        try {
+            load();
+            reconcile(isBackupFile);
+            rewrite();
+        } catch (IOException | RuntimeException e) {
+            Logger.warn("Failed to load the backup catalog: " + e.getMessage());
+        }
+    }
+
+    /**
+     * @param name          the backup file name
+     * @param created       epoch millis
+     * @param size          size of the backup file
+     * @param inputSize     uncompressed bytes that went into it
+     * @param files         how many files it holds
+     * @param parent        the backup it builds on (incremental backups), if any
+     * @param hash          SHA-256 of the backup file, if known
+     */
+    public record Entry(String name, long created, long size, long inputSize, int files, long durationMillis,
+                        String method, @Nullable String parent, @Nullable String hash) {
+        public double getRatio() {
+            return inputSize > 0 ? (double) size / inputSize : 1;
+        }
+
+        private String toLine() {
+            return String.join(":", "add", Long.toString(created), Long.toString(size), Long.toString(inputSize),
+                    Integer.toString(files), Long.toString(durationMillis), method,
+                    parent == null ? "-" : parent, hash == null ? "-" : hash, name);
+        }
+
+        private static Entry parse(String[] parts) {
+            return new Entry(parts[9], Long.parseLong(parts[1]), Long.parseLong(parts[2]), Long.parseLong(parts[3]),
+                    Integer.parseInt(parts[4]), Long.parseLong(parts[5]), parts[6],
+                    parts[7].equals("-") ? null : parts[7], parts[8].equals("-") ? null : parts[8]);
+        }
+    }
+
+    public synchronized void add(Entry entry) throws IOException {
+        append(entry.toLine());
+        entries.remove(entry.name());
+        entries.put(entry.name(), entry);
+    }
+
+    public synchronized void remove(String name) throws IOException {
+        if (entries.remove(name) != null) {
+            append("remove:" + name);
+        }
+        remote.remove(name);
+        evicted.remove(name);
+    }
+
+    /**
+     * Records that the backup is also stored offsite.
+     */
+    public synchronized void markRemote(String name) throws IOException {
+        if (entries.containsKey(name) && remote.add(name)) {
+            append("remote:" + name);
+        }
+    }
+
+    /**
+     * Records that the local file of an offsite backup was deleted.
+     */
+    public synchronized void markEvicted(String name) throws IOException {
+        if (remote.contains(name) && evicted.add(name)) {
+            append("evict:" + name);
+        }
+    }
+
+    /**
+     * Records that an evicted backup was downloaded again.
+     */
+    public synchronized void markLocal(String name) throws IOException {
+        if (evicted.remove(name)) {
+            append("local:" + name);
+        }
+    }
+
+    public synchronized boolean isRemote(String name) {
+        return remote.contains(name);
+    }
+
+    public synchronized boolean isLocal(String name) {
+        return entries.containsKey(name) && !evicted.contains(name);
+    }
+
+    /**
+     * How much the dedup chunk store takes on disk, as of the last backup.
+     */
+    public synchronized void setStoreSize(long storeSize) throws IOException {
+        if (this.storeSize != storeSize) {
+            append("store:" + storeSize);
+            this.storeSize = storeSize;
+        }
+    }
+
+    public synchronized long getStoreSize() {
+        return storeSize;
+    }
+
+    public synchronized @Nullable Entry get(String name) {
+        return entries.get(name);
+    }
+
+    /**
+     * @return every backup, oldest first
+     */
+    public synchronized List<Entry> getEntries() {
+        List<Entry> sorted = new ArrayList<>(entries.values());
+        sorted.sort(Comparator.comparingLong(Entry::created));
+        return sorted;
+    }
+
+    public synchronized List<String> getNames() {
+        return List.copyOf(entries.keySet());
+    }
+
+    /**
+     * @return how much the backups take on this disk
+     */
+    public synchronized long getTotalSize() {
+        return entries.values().stream()
+                .filter(entry -> !evicted.contains(entry.name()))
+                .mapToLong(Entry::size).sum() + storeSize;
+    }
+
+    private void load() throws IOException {
+        if (!Files.exists(logFile)) return;
+
+        List<String> lines = Files.readAllLines(logFile, StandardCharsets.UTF_8);
+        if (lines.isEmpty() || !lines.get(0).equals(HEADER)) {
+            throw new IOException("Unknown catalog format");
+        }
+        for (String line : lines.subList(1, lines.size())) {
+            try {
+                if (line.startsWith("add:")) {
+                    Entry entry = Entry.parse(line.split(":", 10));
+                    entries.put(entry.name(), entry);
+                } else if (line.startsWith("remove:")) {
+                    String name = line.substring("remove:".length());
+                    entries.remove(name);
+                    remote.remove(name);
+                    evicted.remove(name);
+                } else if (line.startsWith("remote:")) {
+                    remote.add(line.substring("remote:".length()));
+                } else if (line.startsWith("evict:")) {
+                    evicted.add(line.substring("evict:".length()));
+                } else if (line.startsWith("local:")) {
+                    evicted.remove(line.substring("local:".length()));
+                } else if (line.startsWith("store:")) {
+                    storeSize = Long.parseLong(line.substring("store:".length()));
+                }
+            } catch (RuntimeException e) {
+                // a line cut short by a crash
+                Logger.debug("Skipping broken catalog line: " + line);
+            }
+        }
+    }
+
+    private void reconcile(Predicate<String> isBackupFile) throws IOException {
+        Set<String> found = new HashSet<>();
+        List<Path> files = List.of();
+        if (Files.isDirectory(backupDir)) {
+            try (Stream<Path> list = Files.list(backupDir)) {
+                files = list.filter(path -> isBackupFile.test(path.getFileName().toString())).toList();
+            }
+        }
+        for (Path file : files) {
+            String name = file.getFileName().toString();
+            found.add(name);
+            if (!entries.containsKey(name)) {
+                long modified = Files.getLastModifiedTime(file).toMillis();
+                entries.put(name, new Entry(name, modified, Files.size(file), 0, 0, 0,
+                        "unknown", null, readChecksum(file)));
+            }
+        }
+        // backups that are only left offsite are still there
+        entries.keySet().removeIf(name -> !found.contains(name) && !remote.contains(name));
+        remote.retainAll(entries.keySet());
+        evicted.clear();
+        entries.keySet().stream().filter(name -> !found.contains(name)).forEach(evicted::add);
+    }
+
+    private void rewrite() throws IOException {
+        StringBuilder log = new StringBuilder(HEADER).append('\n');
+        getEntries().forEach(entry -> log.append(entry.toLine()).append('\n'));
+        remote.forEach(name -> log.append("remote:").append(name).append('\n'));
+        evicted.forEach(name -> log.append("evict:").append(name).append('\n'));
+        if (storeSize > 0) {
+            log.append("store:").append(storeSize).append('\n');
+        }
+
+        Path tempFile = logFile.resolveSibling("catalog.log.tmp");
+        Files.createDirectories(logFile.getParent());
+        Files.writeString(tempFile, log, StandardCharsets.UTF_8);
+        Files.move(tempFile, logFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private void append(String line) throws IOException {
+        try (FileChannel channel = FileChannel.open(logFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND)) {
+            if (channel.size() == 0) {
+                line = HEADER + "\n" + line;
+            }
+            ByteBuffer buffer = ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.UTF_8));
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(false);
+        }
+    }
+
+    /**
+     * @return the hash from the backup's {@code .sha256} sidecar, if it has one
+     */
+    public static @Nullable String readChecksum(Path backupFile) {
+        try {
+            String checksum = Files.readString(Compressor.checksumFile(backupFile), StandardCharsets.UTF_8);
+            return checksum.split("\\s+", 2)[0];
+        } catch (IOException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package me.norax.nyaBackup;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.StringJoiner;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * One backup run, moving through its phases in order:
+ * saving (main thread) → flushed → capturing → compressing → done.
+ * Every phase transition is timed so slow phases show up in the logs.
+ */
+public class BackupJob {
+    public enum Phase {
+        QUEUED, SAVING, FLUSHED, CAPTURING, COMPRESSING, DONE, FAILED
+    }
+
+    private final String name;
+    private final boolean manual;
+    private final Map<Phase, Long> durations = new EnumMap<>(Phase.class);
+    private final CompletableFuture<BackupJob> completion = new CompletableFuture<>();
+    private volatile Phase phase = Phase.QUEUED;
+    private long phaseStart = System.nanoTime();
+    private volatile long queueWaitMillis;
+    private volatile long inputBytes;
+    private volatile long outputBytes;
+    private volatile int fileCount;
+    private volatile boolean skipped;
+    private long mainThreadNanos;
+    private int saveTicks;
+
+    public BackupJob(String name, boolean manual) {
+        this.name = name;
+        this.manual = manual;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public boolean isManual() {
+        return manual;
+    }
+
+    public Phase getPhase() {
+        return phase;
+    }
+
+    public long getQueueWaitMillis() {
+        return queueWaitMillis;
+    }
+
+    void setQueueWaitMillis(long queueWaitMillis) {
+        this.queueWaitMillis = queueWaitMillis;
+    }
+
+    public long getInputBytes() {
+        return inputBytes;
+    }
+
+    public long getOutputBytes() {
+        return outputBytes;
+    }
+
+    public int getFileCount() {
+        return fileCount;
+    }
+
+    void setResult(long inputBytes, long outputBytes, int fileCount) {
+        this.inputBytes = inputBytes;
+        this.outputBytes = outputBytes;
+        this.fileCount = fileCount;
+    }
+
+    /**
+     * @return whether an automatic backup was skipped because nothing changed
+     */
+    public boolean isSkipped() {
+        return skipped;
+    }
+
+    void setSkipped() {
+        this.skipped = true;
+    }
+
+    /**
+     * @return how long the job held the main thread, saving included
+     */
+    public synchronized long getMainThreadMillis() {
+        return mainThreadNanos / 1_000_000;
+    }
+
+    /**
+     * @return how many ticks the saves were spread over
+     */
+    public synchronized int getSaveTicks() {
+        return saveTicks;
+    }
+
+    synchronized void addMainThreadNanos(long nanos, int ticks) {
+        this.mainThreadNanos += nanos;
+        this.saveTicks += ticks;
+    }
+
+    /**
+     * Completes once the job is done, or exceptionally if it failed.
+     */
+    public CompletableFuture<BackupJob> getCompletion() {
+        return completion;
+    }
+
+    synchronized void enter(Phase next) {
+        long now = System.nanoTime();
+        durations.put(phase, now - phaseStart);
+        phaseStart = now;
+        phase = next;
+    }
+
+    void complete() {
+        enter(Phase.DONE);
+        completion.complete(this);
+    }
+
+    void fail(Throwable cause) {
+        enter(Phase.FAILED);
+        completion.completeExceptionally(cause);
+    }
+
+    public synchronized long getDurationMillis(Phase phase) {
+        return durations.getOrDefault(phase, 0L) / 1_000_000;
+    }
+
+    public synchronized String describeDurations() {
+        StringJoiner joiner = new StringJoiner(", ");
+        for (Phase phase : new Phase[]{Phase.SAVING, Phase.FLUSHED, Phase.CAPTURING, Phase.COMPRESSING}) {
+            if (durations.containsKey(phase)) {
+                joiner.add(phase.name().toLowerCase() + " " + getDurationMillis(phase) + "ms");
+            }
+        }
+        return joiner.toString();
+    }
+}
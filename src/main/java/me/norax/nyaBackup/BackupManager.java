@@ -2,32 +2,50 @@ package me.norax.nyaBackup;
 
 import me.norax.nyaBackup.helpers.Logger;
 import net.kyori.adventure.text.Component;
-import org.bukkit.Bukkit;
 
 import org.bukkit.entity.Player;
-import org.bukkit.scheduler.BukkitRunnable;
+import org.jetbrains.annotations.Nullable;
 
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.nio.file.*;
-import java.security.NoSuchAlgorithmException;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
-import java.util.stream.Collectors;
 import java.util.stream.Stream;
-import me.norax.nyaBackup.methods.Compressor;
-import me.norax.nyaBackup.methods.Cacher;
+import me.norax.nyaBackup.methods.*;
 
 import static net.lingala.zip4j.util.Zip4jUtil.createDirectoryIfNotExists;
 import static org.codehaus.plexus.util.FileUtils.deleteDirectory;
 
 public class BackupManager {
+    private static final long FLUSH_POLL_MILLIS = 250;
+    private static final long FLUSH_TIMEOUT_MILLIS = 30_000;
+    /**
+     * Between the backup name and the unit in the file name of a unit's archive.
+     */
+    public static final String UNIT_SEPARATOR = "@";
+
     private final NyaBackup plugin;
     private final ConfigManager config;
-    private final Compressor compressor;
-    private BukkitRunnable backupTask;
+    private final Map<String, Compressor> compressors = new LinkedHashMap<>();
+    private final ChunkStore chunkStore;
+    private final Stager stager;
+    private final FileIndex fileIndex;
+    private final BackupCatalog catalog;
+    private final BackupMetrics metrics;
+    private final Offsite offsite;
+    private final SaveCoordinator saveCoordinator;
     private final Path serverDir;
     private final Path backupDir;
 
@@ -38,202 +56,728 @@ public class BackupManager {
         this.config = plugin.getConfigManager();
         this.serverDir = plugin.getServer().getWorldContainer().toPath();
         this.backupDir = plugin.getDataFolder().toPath().resolve("backups");
-        this.compressor = new Compressor(plugin);
+        this.chunkStore = new ChunkStore(plugin);
+        this.stager = new Stager(plugin);
+        this.fileIndex = new FileIndex(plugin);
+        this.metrics = plugin.getMetrics();
+        this.offsite = plugin.getOffsite();
+        this.saveCoordinator = new SaveCoordinator(plugin);
+
+        ZipCompressor zipCompressor = new ZipCompressor(plugin, false);
+        registerCompressor(zipCompressor);
+        registerCompressor(new ZipCompressor(plugin, true));
+        registerCompressor(new SevenZipCompressor(plugin, zipCompressor));
+        registerCompressor(new ZstdCompressor(plugin));
+        registerCompressor(chunkStore);
+
+        this.catalog = new BackupCatalog(plugin, this::isBackupFile);
     }
 
-    public void createBackup(String name) {
-        try {
-            plugin.getServer().getScheduler().runTask(plugin, () -> {
-                plugin.getServer().getWorlds().forEach(world -> {
-                    world.setAutoSave(false);
-                    world.save();
+    public BackupCatalog getCatalog() {
+        return catalog;
+    }
+
+    public void registerCompressor(Compressor compressor) {
+        compressors.put(compressor.getName(), compressor);
+    }
+
+    private Compressor getCompressor(String compressionMethod) {
+        Compressor compressor = compressors.get(compressionMethod.equals("7zp") ? "7z" : compressionMethod);
+        if (compressor == null) {
+            Logger.warn("Unsupported compression method found(" + compressionMethod + ") falling back to 7z");
+            compressor = compressors.get("7z");
+        }
+        return compressor;
+    }
+
+    private Compressor getCompressorFor(Path backupFile) throws IOException {
+        String name = backupFile.getFileName().toString();
+        return compressors.values().stream()
+                .filter(compressor -> name.endsWith(compressor.getExtension()))
+                .findFirst()
+                .orElseThrow(() -> new IOException("Unknown backup format: " + name));
+    }
+
+    /**
+     * Starts a backup. Worlds and players are saved on the main thread, spread over
+     * several ticks by the {@link SaveCoordinator}, and only once that finished and
+     * the server seems to have stopped writing region files (see {@link #awaitFlush})
+     * are the files read on an async thread.
+     *
+     * @param manual automatic backups are skipped when no file changed since the last one
+     */
+    public BackupJob createBackup(String name, boolean manual) {
+        return createBackup(name, manual, Set.of());
+    }
+
+    /**
+     * @param units with {@code units.enabled}, the units to back up. Empty means every
+     *              unit for manual backups, and those without a schedule of their own otherwise.
+     */
+    public BackupJob createBackup(String name, boolean manual, Set<String> units) {
+        String backupFileName = name.isBlank() ?
+                "backup_" + LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyyMMdd_HHmmss")) :
+                name;
+        BackupJob job = new BackupJob(backupFileName, manual);
+
+        Executor mainThread = task -> plugin.getServer().getScheduler().runTask(plugin.getBukkitPlugin(), task);
+        Executor async = plugin.getIoExecutor().getJobExecutor();
+
+        CompletableFuture.supplyAsync(() -> {
+                    long start = System.nanoTime();
+                    job.enter(BackupJob.Phase.SAVING);
+                    metrics.jobStarted();
+                    Capture capture = selectUnits(units, manual);
+                    job.addMainThreadNanos(System.nanoTime() - start, 0);
+                    CompletableFuture<Capture> saved = saveCoordinator.save(world -> capture.includes(world.getName()))
+                            .thenApply(result -> {
+                                job.addMainThreadNanos(result.mainThreadNanos(), result.ticks());
+                                return new Capture(capture.units(), capture.selected(), result.savedRegions());
+                            });
+                    return saved;
+                }, mainThread)
+                .thenCompose(saved -> saved)
+                .thenAcceptAsync(capture -> runBackup(job, capture), async)
+                .whenComplete((ignored, error) -> {
+                    if (error == null) {
+                        job.complete();
+                        metrics.jobFinished(job);
+                        Logger.info("Backup phases: " + job.describeDurations() + ", main thread " + job.getMainThreadMillis()
+                                + "ms over " + job.getSaveTicks() + " ticks");
+                        return;
+                    }
+                    Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+                    job.fail(cause);
+                    metrics.jobFinished(job);
+                    restoreAutoSave();
+                    Logger.error("Error creating backup: " + cause.getMessage());
                 });
-                plugin.getServer().getOnlinePlayers().forEach(Player::saveData);
-            });
+        return job;
+    }
+
+    /**
+     * Runs on the main thread, the worlds can only be listed there.
+     */
+    private Capture selectUnits(Set<String> requested, boolean manual) {
+        if (!config.isUnitsEnabled()) {
+            return new Capture(null, null, Map.of());
+        }
+
+        List<BackupUnit> units = new ArrayList<>();
+        plugin.getServer().getWorlds().forEach(world -> units.add(BackupUnit.of(world, serverDir)));
+        units.add(BackupUnit.server());
 
+        Set<String> selected = new HashSet<>();
+        for (BackupUnit unit : units) {
+            boolean wanted = requested.isEmpty() ? manual || !config.hasUnitSchedule(unit.name()) : requested.contains(unit.name());
+            if (wanted) selected.add(unit.name());
+        }
+        requested.stream()
+                .filter(unit -> !selected.contains(unit))
+                .forEach(unit -> Logger.warn("There is no world called " + unit + ", it is not backed up"));
+        return new Capture(units, selected, Map.of());
+    }
+
+    private void runBackup(BackupJob job, Capture capture) {
+        String backupFileName = job.getName();
+        boolean snapshot = config.isSnapshotEnabled();
+        boolean autoSaveRestored = false;
+
+        try {
+            job.enter(BackupJob.Phase.FLUSHED);
+            awaitFlush(capture.savedRegions());
+
+            job.enter(BackupJob.Phase.CAPTURING);
             createDirectoryIfNotExists(backupDir.toFile());
+            Compressor compressor = getCompressor(config.getCompressionMethod().toLowerCase());
+
+            long scanStart = System.nanoTime();
+            FileIndex.Scan scan = fileIndex.scan();
+            long scanMillis = (System.nanoTime() - scanStart) / 1_000_000;
+            metrics.scanFinished(scanMillis);
+            Logger.debug("Scanned " + scan.files().size() + " files in " + scanMillis
+                    + "ms, " + scan.changed().size() + " changed and " + scan.removed().size() + " removed");
+
+            Map<String, List<Path>> parts = capture.split(serverDir, scan.files());
+            if (parts.isEmpty()) {
+                // every unit has a schedule of its own
+                Logger.debug("No unit to back up");
+                job.setSkipped();
+                return;
+            }
+            if (!job.isManual() && config.isSkipUnchanged()) {
+                parts.keySet().removeIf(unit -> isUnchanged(scan, capture, unit));
+                if (parts.isEmpty()) {
+                    Logger.info("Nothing changed since the last backup, skipping it");
+                    job.setSkipped();
+                    return;
+                }
+            }
 
-            plugin.getServer().getScheduler().runTaskAsynchronously(plugin, () -> {
+            Path sourceDir = serverDir;
+            if (snapshot) {
+                List<Path> staged = stager.stage(backupFileName, parts.values().stream().flatMap(List::stream).toList());
+                sourceDir = stager.getStagingDir(backupFileName);
+                parts = capture.split(sourceDir, staged);
+
+                restoreAutoSave();
+                autoSaveRestored = true;
+            }
+
+            job.enter(BackupJob.Phase.COMPRESSING);
+            List<BackupCatalog.Entry> created = compressUnits(compressor, backupFileName, sourceDir, parts, scan, capture);
+            job.setResult(created.stream().mapToLong(BackupCatalog.Entry::inputSize).sum(),
+                    created.stream().mapToLong(BackupCatalog.Entry::size).sum(),
+                    created.stream().mapToInt(BackupCatalog.Entry::files).sum());
+
+            try {
+                cacher.updateCache();
+            } catch (IOException e) {
+                logError("Failed to update the cache", e);
+            }
+
+            cleanOldBackups();
+            Logger.success("Created backup at:", String.join(", ", created.stream().map(BackupCatalog.Entry::name).toList()));
+
+        } catch (IOException e) {
+            throw new CompletionException(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CompletionException(e);
+        } finally {
+            if (!autoSaveRestored) {
+                restoreAutoSave();
+            }
+            if (snapshot) {
                 try {
-                    String backupFileName = name.isBlank() ?
-                            "backup_" + LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyyMMdd_HHmmss")) :
-                            name;
-
-                    Path backupFile = backupDir.resolve(backupFileName.endsWith(".zip") || backupFileName.endsWith(".7z") ? backupFileName :
-                            config.getCompressionMethod().equalsIgnoreCase("zip") ? backupFileName + ".zip" : backupFileName + ".7z");
-
-                    List<Path> filesToBackup = getFilesToBackup();
-
-                    String compressionMethod = config.getCompressionMethod().toLowerCase();
-
-                    switch (compressionMethod) {
-                        case "zip":
-                            compressor.createZipBackup(backupFile, filesToBackup, backupFileName);
-                            break;
-                        case "7z":
-                            compressor.create7zBackup(backupFile, filesToBackup, backupFileName);
-                            break;
-                        default:
-                            Logger.warn("Unsupported compression method found(" + config.getCompressionMethod() + ") falling back to 7z");
-                            compressor.create7zBackup(backupFile, filesToBackup, backupFileName);
-                            break;
-                    }
+                    stager.cleanup(backupFileName);
+                } catch (IOException e) {
+                    logError("Failed to clean up the snapshot", e);
+                }
+            }
+        }
+    }
 
-                    getFilesToCache().forEach(file -> {
-                        try {
-                            cacher.cacheFile(file);
-                        } catch (Exception e) {
-                            logError("Failed to cache file: " + file, e);
-                        }
-                    });
+    /**
+     * Compresses every unit into its own archive, {@code units.parallel} of them at
+     * once. The file index only remembers the units that made it into a backup.
+     */
+    private List<BackupCatalog.Entry> compressUnits(Compressor compressor, String backupFileName, Path sourceDir,
+                                                    Map<String, List<Path>> parts, FileIndex.Scan scan,
+                                                    Capture capture) throws IOException {
+        String baseName = backupFileName;
+        if (parts.size() > 1 || !parts.containsKey("")) {
+            baseName = compressors.values().stream()
+                    .filter(method -> backupFileName.endsWith(method.getExtension()))
+                    .findFirst()
+                    .map(method -> backupFileName.substring(0, backupFileName.length() - method.getExtension().length()))
+                    .orElse(backupFileName);
+        }
 
-                    cleanOldBackups();
-                    Logger.success("Created backup at:", backupFileName);
+        Map<String, Future<BackupCatalog.Entry>> tasks = new LinkedHashMap<>();
+        ExecutorService workers = Executors.newFixedThreadPool(Math.min(parts.size(), config.getUnitThreads()), runnable -> {
+            Thread thread = new Thread(runnable, "NyaBackup-unit");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            for (Map.Entry<String, List<Path>> part : parts.entrySet()) {
+                String unit = part.getKey();
+                String name = unit.isEmpty() ? backupFileName : baseName + UNIT_SEPARATOR + unit;
+                Path backupFile = backupDir.resolve(unit.isEmpty() && isBackupFile(name) ? name : name + compressor.getExtension());
+                tasks.put(unit, workers.submit(() -> compressUnit(compressor, backupFile, sourceDir, part.getValue(), name, unit)));
+            }
 
-                } catch (IOException | NoSuchAlgorithmException e) {
-                    Logger.error("Error creating backup: " + e.getMessage());
+            List<BackupCatalog.Entry> created = new ArrayList<>();
+            Set<String> done = new HashSet<>();
+            IOException failure = null;
+            for (Map.Entry<String, Future<BackupCatalog.Entry>> task : tasks.entrySet()) {
+                try {
+                    created.add(task.getValue().get());
+                    done.add(task.getKey());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Backup interrupted");
+                } catch (ExecutionException e) {
+                    IOException cause = e.getCause() instanceof IOException io ? io : new IOException(e.getCause());
+                    Logger.error("Failed to back up " + (task.getKey().isEmpty() ? "the server" : task.getKey()) + ": " + cause.getMessage());
+                    if (failure == null) failure = cause;
                 }
-            });
-        } catch (Exception e) {
-            logError("Backup initialization failed", e);
+            }
+
+            fileIndex.commit(scan, path -> done.contains(capture.unitOf(path)));
+            if (failure != null) throw failure;
+            return created;
+        } finally {
+            workers.shutdownNow();
+        }
+    }
+
+    private BackupCatalog.Entry compressUnit(Compressor compressor, Path backupFile, Path sourceDir, List<Path> files,
+                                             String name, String unit) throws IOException {
+        boolean added = false;
+        try {
+            long start = System.nanoTime();
+            String parent = null;
+            long inputSize;
+            if (compressor == chunkStore) {
+                parent = config.isIncrementalEnabled() ? findLatestManifest(unit) : null;
+                inputSize = chunkStore.createBackup(backupFile, sourceDir, files, name,
+                        parent == null ? null : backupDir.resolve(parent));
+            } else {
+                inputSize = compressor.createBackup(backupFile, sourceDir, files, name);
+            }
+            long duration = System.nanoTime() - start;
+            logThroughput(unit.isEmpty() ? compressor.getName() : compressor.getName() + " " + unit, backupFile, inputSize, duration);
+
+            BackupCatalog.Entry entry = new BackupCatalog.Entry(backupFile.getFileName().toString(), System.currentTimeMillis(),
+                    Files.size(backupFile), inputSize, files.size(), duration / 1_000_000,
+                    compressor.getName(), parent, BackupCatalog.readChecksum(backupFile));
+            catalog.add(entry);
+            added = true;
+
+            // dedup backups are made of shared chunks, only whole archives go offsite
+            if (compressor != chunkStore && offsite.finish(backupFile)) {
+                catalog.markRemote(entry.name());
+            }
+            return entry;
+        } catch (IOException | RuntimeException e) {
+            // a truncated archive would be taken for a good backup on the next start
+            if (!added) {
+                try {
+                    Files.deleteIfExists(backupFile);
+                    Files.deleteIfExists(Compressor.checksumFile(backupFile));
+                } catch (IOException cleanup) {
+                    e.addSuppressed(cleanup);
+                }
+            }
+            throw e;
         } finally {
-            plugin.getServer().getWorlds().forEach(world -> world.setAutoSave(true));
+            offsite.abort(backupFile);
         }
     }
 
+    private boolean isUnchanged(FileIndex.Scan scan, Capture capture, String unit) {
+        if (!scan.hasParent()) return false;
+        return scan.changed().stream().noneMatch(file -> capture.unitOf(serverDir, file).equals(unit))
+                && scan.removed().stream().noneMatch(path -> capture.unitOf(path).equals(unit));
+    }
 
-    public void loadBackup(Path backupFile) throws IOException {
-        if (!Files.exists(backupFile)) {
-            throw new FileNotFoundException("Backup file not found: " + backupFile);
+    /**
+     * Waits for the server's I/O threads to write what the saves handed them, as far
+     * as that can be told: {@code World.save()} queues the region writes without a
+     * way to know when they are done. This is a best-effort heuristic. Only the region
+     * files of the chunks that were loaded when their world was saved are looked at,
+     * a file is done once it was written after that save started. Once none got done
+     * for {@code performance.flush_quiet} ms the writes are taken as drained, and the
+     * others as having had nothing to save. A disk stalling for longer than that lets
+     * the backup start while writes are still queued. Later writes of a done file
+     * (chunk unloads) don't matter.
+     */
+    private void awaitFlush(Map<Path, Long> savedRegions) throws InterruptedException {
+        long quietMillis = config.getFlushQuietMillis();
+        if (quietMillis <= 0) return;
+
+        Map<Path, Long> pending = new HashMap<>(savedRegions);
+        long deadline = System.currentTimeMillis() + FLUSH_TIMEOUT_MILLIS;
+        long lastProgress = savedRegions.values().stream().mapToLong(Long::longValue).max().orElse(0);
+
+        while (!pending.isEmpty()) {
+            int before = pending.size();
+            pending.entrySet().removeIf(region -> {
+                try {
+                    return Files.getLastModifiedTime(region.getKey()).toMillis() >= region.getValue();
+                } catch (IOException e) {
+                    // not created yet
+                    return false;
+                }
+            });
+
+            long now = System.currentTimeMillis();
+            if (pending.size() < before) lastProgress = now;
+            if (now - lastProgress >= quietMillis) return;
+            if (now >= deadline) {
+                Logger.warn("The server was still writing region files after " + FLUSH_TIMEOUT_MILLIS / 1000 + "s, backing up anyway");
+                return;
+            }
+            Thread.sleep(FLUSH_POLL_MILLIS);
         }
+    }
+
+    private void restoreAutoSave() {
+        plugin.getServer().getScheduler().runTask(plugin.getBukkitPlugin(), () ->
+                plugin.getServer().getWorlds().forEach(world -> world.setAutoSave(true)));
+    }
+
+
+    /**
+     * Restores a backup and restarts the server. The entries are extracted in
+     * parallel straight into a staging folder, which lives in the plugin folder
+     * so it normally is on the same disk as the server, and each file is then
+     * renamed into place, so no file is ever written twice. Runs off the main
+     * thread, only the kick and the shutdown go back to it.
+     */
+    public void loadBackup(Path backupFile) throws IOException {
+        fetchBackup(backupFile);
 
-        Path tempDir = Files.createTempDirectory("backup_restore");
+        Path restoreDir = plugin.getDataFolder().toPath().resolve("restore");
+        deleteDirectory(restoreDir.toFile());
 
         try {
-            compressor.extractZipBackup(backupFile, tempDir);
-
-            try (Stream<Path> paths = Files.walk(tempDir)) {
-                List<Path> fileList = paths
-                        .filter(path -> !Files.isDirectory(path))
-                        .filter(path -> !path.toString().endsWith(".reference"))
-                        .filter(path -> !path.toString().endsWith(".dat"))
-                        .filter(path -> !path.toString().endsWith(".dat_old"))
-                        .toList();
-
-                for (Path path : fileList) {
-                    Path relativePath = tempDir.relativize(path);
+            RestoreProgress progress = new RestoreProgress(backupFile.getFileName().toString());
+            getCompressorFor(backupFile).extractBackup(backupFile, restoreDir, BackupManager::shouldRestore, RestoreLimits.offline(), progress);
+
+            try (Stream<Path> paths = Files.walk(restoreDir)) {
+                for (Path path : paths.filter(Files::isRegularFile).toList()) {
+                    Path relativePath = restoreDir.relativize(path);
                     Path targetPath = serverDir.resolve(relativePath);
-                    createDirectoryIfNotExists(targetPath.getParent().toFile());
 
-                    String filename = path.getFileName().toString();
                     try {
-                        cacher.restoreCachedFile(filename);
+                        cacher.restoreCachedFile(relativePath.toString());
                     } catch (IOException cachedFileNotFound) {
-                        Files.copy(path, targetPath, StandardCopyOption.REPLACE_EXISTING);
+                        createDirectoryIfNotExists(targetPath.getParent().toFile());
+                        moveIntoPlace(path, targetPath);
                     }
                 }
             }
+            Logger.success("Restored " + progress.getDone() / (1024 * 1024) + " MB in " + progress.getElapsedMillis() + "ms");
 
-            if (config.isKickEnabled()) {
-                for (Player player : Bukkit.getOnlinePlayers()) {
-                    player.kick(Component.text(Objects.requireNonNull(config.getKickMessage())));
+            plugin.getServer().getScheduler().runTask(plugin.getBukkitPlugin(), () -> {
+                if (config.isKickEnabled()) {
+                    for (Player player : plugin.getServer().getOnlinePlayers()) {
+                        player.kick(Component.text(Objects.requireNonNull(config.getKickMessage())));
+                    }
+                }
+
+                plugin.getServer().shutdown();
+            });
+
+        } finally {
+            deleteDirectory(restoreDir.toFile());
+        }
+    }
+
+    /**
+     * Restores only the part of a backup picked by {@code selection}, without
+     * restarting the server. Zip and dedup backups jump straight to the requested
+     * entries through their central directory or manifest. Files the server has
+     * open ({@code inUse}) are kept aside and put in place on the next start.
+     *
+     * @return how many files were restored
+     */
+    public int restoreSelection(Path backupFile, RestoreSelection selection, boolean inUse) throws IOException {
+        fetchBackup(backupFile);
+
+        Path restoreDir = plugin.getDataFolder().toPath().resolve("restore-partial");
+        deleteDirectory(restoreDir.toFile());
+
+        try {
+            RestoreProgress progress = new RestoreProgress(selection.description());
+            getCompressorFor(backupFile).extractBackup(backupFile, restoreDir, selection.filter(), RestoreLimits.live(plugin), progress);
+
+            Path targetDir = inUse ? getPendingRestoreDir(plugin.getDataFolder().toPath()) : serverDir;
+            int restored = 0;
+            if (Files.isDirectory(restoreDir)) {
+                try (Stream<Path> paths = Files.walk(restoreDir)) {
+                    for (Path path : paths.filter(Files::isRegularFile).toList()) {
+                        Path targetPath = targetDir.resolve(restoreDir.relativize(path).toString());
+                        createDirectoryIfNotExists(targetPath.getParent().toFile());
+                        moveIntoPlace(path, targetPath);
+                        restored++;
+                    }
                 }
             }
+            return restored;
+        } finally {
+            deleteDirectory(restoreDir.toFile());
+        }
+    }
 
-            plugin.getServer().shutdown();
+    /**
+     * Restores one world without restarting the server. The world is extracted
+     * into a staging folder while it keeps running, then it is unloaded, swapped
+     * for the staged copy and loaded again by {@link HotRestore}.
+     *
+     * @return how many files were restored
+     */
+    public int hotRestoreWorld(Path backupFile, String worldName) throws IOException {
+        fetchBackup(backupFile);
 
+        Path restoreDir = plugin.getDataFolder().toPath().resolve("restore-hot");
+        deleteDirectory(restoreDir.toFile());
+
+        try {
+            RestoreSelection selection = RestoreSelection.world(worldName);
+            RestoreProgress progress = new RestoreProgress(selection.description());
+            getCompressorFor(backupFile).extractBackup(backupFile, restoreDir, selection.filter(), RestoreLimits.live(plugin), progress);
+
+            Path stagedFolder = restoreDir.resolve(worldName);
+            if (!Files.isDirectory(stagedFolder)) return 0;
+
+            int restored;
+            try (Stream<Path> paths = Files.walk(stagedFolder)) {
+                restored = (int) paths.filter(Files::isRegularFile).count();
+            }
+            new HotRestore(plugin, worldName).swapIn(stagedFolder);
+            return restored;
         } finally {
-            deleteDirectory(tempDir.toFile());
+            deleteDirectory(restoreDir.toFile());
         }
     }
 
+    /**
+     * Downloads a backup whose local file was evicted, checking it against the catalog's hash.
+     */
+    private void fetchBackup(Path backupFile) throws IOException {
+        if (Files.exists(backupFile)) return;
+
+        String name = backupFile.getFileName().toString();
+        BackupCatalog.Entry entry = catalog.get(name);
+        if (entry == null || !catalog.isRemote(name)) {
+            throw new FileNotFoundException("Backup file not found: " + backupFile);
+        }
+        createDirectoryIfNotExists(backupDir.toFile());
+        offsite.download(backupFile, entry.hash());
+        catalog.markLocal(name);
+    }
+
+    private static Path getPendingRestoreDir(Path dataFolder) {
+        return dataFolder.resolve("pending-restore");
+    }
 
-    private List<Path> getFilesToCache() throws IOException {
-        List<String> cachePaths = ConfigManager.getCaches();
-        return cachePaths.stream()
-                .map(serverDir::resolve)
-                .filter(Files::exists)
-                .filter(Files::isRegularFile)
-                .collect(Collectors.toList());
+    /**
+     * Puts the files a partial restore could not replace while the server was
+     * running into place. Called from {@link NyaBackup#onLoad()}, before any world is loaded.
+     */
+    public static int applyPendingRestore(Path dataFolder, Path serverDir) throws IOException {
+        Path pendingDir = getPendingRestoreDir(dataFolder);
+        if (!Files.isDirectory(pendingDir)) return 0;
+
+        int restored = 0;
+        try (Stream<Path> paths = Files.walk(pendingDir)) {
+            for (Path path : paths.filter(Files::isRegularFile).toList()) {
+                Path targetPath = serverDir.resolve(pendingDir.relativize(path).toString());
+                createDirectoryIfNotExists(targetPath.getParent().toFile());
+                moveIntoPlace(path, targetPath);
+                restored++;
+            }
+        }
+        deleteDirectory(pendingDir.toFile());
+        return restored;
     }
 
-    private List<Path> getFilesToBackup() throws IOException {
-        List<String> exclusions = ConfigManager.getExclusions();
-        List<PathMatcher> matchers = exclusions.stream()
-                .map(pattern -> {
-                    pattern = pattern.replace("/*", "/**");
-                    return FileSystems.getDefault().getPathMatcher("glob:" + pattern);
-                })
-                .toList();
-        try (Stream<Path> stream = Files.walk(serverDir)) {
-            return stream.filter(Files::isRegularFile)
-                    .filter(file -> {
-                        Path relativePath = serverDir.relativize(file);
-                        boolean excluded = matchers.stream()
-                                .anyMatch(matcher -> matcher.matches(relativePath));
+    static boolean shouldRestore(String name) {
+        return !name.endsWith(".reference") && !name.endsWith(".dat") && !name.endsWith(".dat_old");
+    }
 
-                        return !excluded;
-                    })
-                    .toList();
+    private static void moveIntoPlace(Path source, Path target) throws IOException {
+        try {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            // the plugin folder is on another disk, this copies
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
         }
     }
 
 
+    /**
+     * @return the unit a backup belongs to, {@code ""} for backups of the whole server
+     */
+    private String unitOf(String backupName) {
+        int separator = backupName.lastIndexOf(UNIT_SEPARATOR);
+        if (separator < 0) return "";
+
+        String unit = backupName.substring(separator + 1);
+        return compressors.values().stream()
+                .map(Compressor::getExtension)
+                .filter(unit::endsWith)
+                .findFirst()
+                .map(extension -> unit.substring(0, unit.length() - extension.length()))
+                .orElse(unit);
+    }
+
+    private boolean isBackupFile(String name) {
+        return compressors.values().stream().anyMatch(compressor -> name.endsWith(compressor.getExtension()));
+    }
+
+    private void logThroughput(String label, Path backupFile, long inputSize, long nanos) throws IOException {
+        double seconds = nanos / 1_000_000_000.0;
+        long outputSize = Files.size(backupFile);
+        Logger.info(String.format("%s: %d MB -> %d MB in %.1fs (%.1f MB/s)", label,
+                inputSize / (1024 * 1024), outputSize / (1024 * 1024), seconds,
+                inputSize / (1024.0 * 1024.0) / Math.max(seconds, 0.001)));
+    }
 
+    private @Nullable String findLatestManifest(String unit) {
+        return catalog.getEntries().reversed().stream()
+                .map(BackupCatalog.Entry::name)
+                .filter(name -> name.endsWith(ChunkStore.MANIFEST_EXTENSION) && unitOf(name).equals(unit))
+                .findFirst()
+                .orElse(null);
+    }
+
+    /**
+     * Deletes the backups the retention policy does not keep, then the oldest
+     * ones while all of them take more than {@code retention.max_size}.
+     * Backups that are stored offsite only lose their local file, beyond the
+     * newest {@code offsite.keep_local} ones or to get under the size limit.
+     * Runs on the backup's async thread, right after a backup finished.
+     */
     private void cleanOldBackups() throws IOException {
-        int maxBackups = config.getMaxBackups();
-        try (Stream<Path> backups = Files.list(backupDir)
-                .filter(path -> path.toString().endsWith(".zip") || path.toString().endsWith(".7z"))
-                .sorted((a, b) -> b.toString().compareTo(a.toString()))) {
-
-            List<Path> backupsList = backups.toList();
-            if (backupsList.size() > maxBackups) {
-                for (int i = maxBackups; i < backupsList.size(); i++) {
-                    Files.delete(backupsList.get(i));
+        RetentionPolicy policy = new RetentionPolicy(config);
+        List<BackupCatalog.Entry> entries = catalog.getEntries();
+        Set<String> kept = new HashSet<>();
+        Map<String, List<BackupCatalog.Entry>> byUnit = new LinkedHashMap<>();
+        entries.forEach(entry -> byUnit.computeIfAbsent(unitOf(entry.name()), unit -> new ArrayList<>()).add(entry));
+        byUnit.forEach((unit, unitEntries) ->
+                kept.addAll(new RetentionPolicy(config, unit.isEmpty() ? null : unit).selectKept(unitEntries)));
+
+        boolean removedManifest = false;
+        for (BackupCatalog.Entry entry : entries) {
+            if (!kept.contains(entry.name())) {
+                removedManifest |= deleteBackup(entry.name());
+            }
+        }
+        if (removedManifest) {
+            collectGarbage();
+        } else {
+            updateStoreSize();
+        }
+
+        int keepLocal = config.getOffsiteKeepLocal();
+        if (keepLocal > 0) {
+            int local = 0;
+            for (BackupCatalog.Entry entry : catalog.getEntries().reversed()) {
+                if (catalog.isLocal(entry.name()) && ++local > keepLocal && catalog.isRemote(entry.name())) {
+                    evictBackup(entry.name());
+                }
+            }
+        }
+
+        List<String> overSize;
+        while (!(overSize = policy.selectOverSize(localEntries(), catalog.getTotalSize())).isEmpty()) {
+            boolean removedChunks = false;
+            for (String name : overSize) {
+                if (catalog.isRemote(name)) {
+                    evictBackup(name);
+                } else {
+                    removedChunks |= deleteBackup(name);
                 }
             }
+            if (removedChunks) {
+                collectGarbage();
+            }
+        }
+        if (policy.getMaxBytes() > 0 && catalog.getTotalSize() > policy.getMaxBytes()) {
+            Logger.warn("The newest backup alone takes more than retention.max_size");
         }
     }
 
-    private void logError(String message, Exception e) {
-        plugin.getLogger().severe(message + ": " + e.getMessage());
+    /**
+     * @return the backups that still have a file here, oldest first
+     */
+    private List<BackupCatalog.Entry> localEntries() {
+        return catalog.getEntries().stream().filter(entry -> catalog.isLocal(entry.name())).toList();
     }
 
-    public void scheduleAutomaticBackups() {
-        String interval = config.getBackupInterval();
-        long ticks = parseInterval(interval);
+    /**
+     * @return whether it was a dedup manifest, whose chunks may now be unused
+     */
+    private boolean deleteBackup(String name) throws IOException {
+        Path backup = backupDir.resolve(name);
+        Files.deleteIfExists(backup);
+        Files.deleteIfExists(Compressor.checksumFile(backup));
+        if (catalog.isRemote(name)) {
+            offsite.delete(name);
+        }
+        catalog.remove(name);
+        Logger.debug("Deleted old backup " + name);
+        return name.endsWith(ChunkStore.MANIFEST_EXTENSION);
+    }
 
-        backupTask = new BukkitRunnable() {
-            @Override
-            public void run() {
-                createBackup("");
-            }
-        };
+    private void evictBackup(String name) throws IOException {
+        Path backup = backupDir.resolve(name);
+        Files.deleteIfExists(backup);
+        Files.deleteIfExists(Compressor.checksumFile(backup));
+        catalog.markEvicted(name);
+        Logger.debug("Only keeping " + name + " offsite");
+    }
 
-        backupTask.runTaskTimer(plugin, ticks, ticks);
+    private void collectGarbage() throws IOException {
+        chunkStore.collectGarbage(catalog.getNames().stream()
+                .filter(name -> name.endsWith(ChunkStore.MANIFEST_EXTENSION))
+                .map(backupDir::resolve)
+                .toList());
+        updateStoreSize();
     }
 
-    private long parseInterval(String interval) {
-        int value = Integer.parseInt(interval.replaceAll("[^0-9]", ""));
-        String unit = interval.replaceAll("[0-9]", "");
+    private void updateStoreSize() throws IOException {
+        if (!Files.isDirectory(chunkStore.getChunksDir())) return;
 
-        return switch (unit.toLowerCase()) {
-            case "s" -> value * 20L;
-            case "m" -> value * 20L * 60L;
-            case "h" -> value * 20L * 60L * 60L;
-            default -> value * 20L * 60L * 60L * 24L;
-        };
+        try (Stream<Path> chunks = Files.walk(chunkStore.getChunksDir())) {
+            catalog.setStoreSize(chunks.filter(Files::isRegularFile).mapToLong(path -> path.toFile().length()).sum());
+        }
+    }
+
+    private void logError(String message, Exception e) {
+        plugin.getLogger().severe(message + ": " + e.getMessage());
+    }
+
+    /**
+     * What a backup covers, decided on the main thread.
+     *
+     * @param units        every unit, {@code null} when backups are not split
+     * @param selected     the names of the units to back up
+     * @param savedRegions see {@link SaveCoordinator.Result}
+     */
+    private record Capture(@Nullable List<BackupUnit> units, @Nullable Set<String> selected, Map<Path, Long> savedRegions) {
+        boolean includes(String world) {
+            return units == null || selected.contains(world);
+        }
+
+        /**
+         * @return the unit a path relative to the server belongs to, {@code ""} when backups are not split
+         */
+        String unitOf(String relativePath) {
+            if (units == null) return "";
+            BackupUnit unit = BackupUnit.find(units, relativePath);
+            return unit == null ? BackupUnit.SERVER : unit.name();
+        }
+
+        String unitOf(Path sourceDir, Path file) {
+            return unitOf(sourceDir.relativize(file).toString().replace(File.separatorChar, '/'));
+        }
+
+        /**
+         * @return the files of each selected unit
+         */
+        Map<String, List<Path>> split(Path sourceDir, List<Path> files) {
+            Map<String, List<Path>> parts = new LinkedHashMap<>();
+            if (units == null) {
+                parts.put("", files);
+                return parts;
+            }
+            for (Path file : files) {
+                String unit = unitOf(sourceDir, file);
+                if (selected.contains(unit)) {
+                    parts.computeIfAbsent(unit, ignored -> new ArrayList<>()).add(file);
+                }
+            }
+            return parts;
+        }
     }
 
     public void shutdown() {
-        for (Player player : Bukkit.getOnlinePlayers()) {
+        for (Player player : plugin.getServer().getOnlinePlayers()) {
             player.kick(Component.text("Server is restarting."));
         }
 
         plugin.getServer().getWorlds().forEach(world -> world.setAutoSave(false));
 
-        if (backupTask != null) {
-            backupTask.cancel();
+        try {
+            fileIndex.close();
+        } catch (IOException e) {
+            logError("Failed to stop watching the server files", e);
         }
     }
 }
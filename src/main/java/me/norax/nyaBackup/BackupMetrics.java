@@ -0,0 +1,319 @@
+package me.norax.nyaBackup;
+
+import com.sun.net.httpserver.HttpServer;
+import me.norax.nyaBackup.helpers.Logger;
+
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters and timings of the backups, shown by {@code /nyabackup stats},
+ * registered as a JMX MBean and optionally served in the Prometheus text
+ * format on {@code metrics.port}.
+ * <p>
+ * The phase timings come from {@link BackupJob}, bytes read and written from
+ * the {@link IoThrottle} (which sees every byte whether it limits or not), and
+ * the compressors report how long each file took so the slowest ones can be listed.
+ */
+public class BackupMetrics implements BackupMetricsMXBean {
+    private static final int SLOWEST_ENTRIES = 10;
+    private static final String OBJECT_NAME = "me.norax.nyaBackup:type=BackupMetrics";
+
+    private final NyaBackup plugin;
+    private final AtomicLong backups = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+    private final AtomicLong totalBytesRead = new AtomicLong();
+    private final AtomicLong totalBytesWritten = new AtomicLong();
+    private final PriorityQueue<SlowEntry> slowest = new PriorityQueue<>(Comparator.comparingLong(SlowEntry::nanos));
+
+    private volatile BackupJob lastJob;
+    private volatile long lastScanMillis;
+    private volatile long lastBytesRead;
+    private volatile long lastBytesWritten;
+    private volatile long lastFinishedAt;
+    private List<SlowEntry> lastSlowest = List.of();
+    private long readAtStart;
+    private long writtenAtStart;
+    private HttpServer httpServer;
+
+    public BackupMetrics(NyaBackup plugin) {
+        this.plugin = plugin;
+    }
+
+    public void start() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(OBJECT_NAME));
+        } catch (Exception e) {
+            Logger.warn("Failed to register the JMX metrics: " + e.getMessage());
+        }
+
+        int port = plugin.getConfigManager().getMetricsPort();
+        if (port <= 0) return;
+        try {
+            httpServer = HttpServer.create(new InetSocketAddress(plugin.getConfigManager().getMetricsBind(), port), 0);
+            httpServer.createContext("/metrics", exchange -> {
+                byte[] body = toPrometheus().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            });
+            httpServer.start();
+        } catch (IOException e) {
+            Logger.warn("Failed to start the metrics endpoint on port " + port + ": " + e.getMessage());
+        }
+    }
+
+    public void shutdown() {
+        if (httpServer != null) {
+            httpServer.stop(0);
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(new ObjectName(OBJECT_NAME));
+        } catch (Exception ignored) {
+            // was never registered
+        }
+    }
+
+    synchronized void jobStarted() {
+        slowest.clear();
+        readAtStart = plugin.getIoThrottle().getBytesRead();
+        writtenAtStart = plugin.getIoThrottle().getBytesWritten();
+    }
+
+    void scanFinished(long millis) {
+        lastScanMillis = millis;
+    }
+
+    /**
+     * Called by the compressors for every file they stored.
+     */
+    public void recordEntry(String path, long nanos, long bytes) {
+        synchronized (slowest) {
+            slowest.add(new SlowEntry(path, nanos, bytes));
+            if (slowest.size() > SLOWEST_ENTRIES) {
+                slowest.poll();
+            }
+        }
+    }
+
+    synchronized void jobFinished(BackupJob job) {
+        if (job.getPhase() == BackupJob.Phase.FAILED) {
+            failures.incrementAndGet();
+        } else if (job.isSkipped()) {
+            skipped.incrementAndGet();
+        } else {
+            backups.incrementAndGet();
+        }
+
+        lastBytesRead = plugin.getIoThrottle().getBytesRead() - readAtStart;
+        lastBytesWritten = plugin.getIoThrottle().getBytesWritten() - writtenAtStart;
+        totalBytesRead.addAndGet(lastBytesRead);
+        totalBytesWritten.addAndGet(lastBytesWritten);
+        synchronized (slowest) {
+            List<SlowEntry> sorted = new ArrayList<>(slowest);
+            sorted.sort(Comparator.comparingLong(SlowEntry::nanos).reversed());
+            lastSlowest = sorted;
+        }
+        lastFinishedAt = System.currentTimeMillis();
+        lastJob = job;
+    }
+
+    @Override
+    public long getBackupCount() {
+        return backups.get();
+    }
+
+    @Override
+    public long getFailedBackupCount() {
+        return failures.get();
+    }
+
+    @Override
+    public long getSkippedBackupCount() {
+        return skipped.get();
+    }
+
+    @Override
+    public boolean isBackupRunning() {
+        BackupScheduler scheduler = plugin.getBackupScheduler();
+        return scheduler != null && scheduler.isRunning();
+    }
+
+    @Override
+    public int getQueuedBackupCount() {
+        BackupScheduler scheduler = plugin.getBackupScheduler();
+        return scheduler == null ? 0 : scheduler.getQueueSize();
+    }
+
+    @Override
+    public long getTotalBytesRead() {
+        return totalBytesRead.get();
+    }
+
+    @Override
+    public long getTotalBytesWritten() {
+        return totalBytesWritten.get();
+    }
+
+    @Override
+    public long getLastQueueWaitMillis() {
+        return lastJob == null ? 0 : lastJob.getQueueWaitMillis();
+    }
+
+    @Override
+    public long getLastSaveMillis() {
+        return phaseMillis(BackupJob.Phase.SAVING);
+    }
+
+    @Override
+    public long getLastMainThreadMillis() {
+        return lastJob == null ? 0 : lastJob.getMainThreadMillis();
+    }
+
+    @Override
+    public long getLastFlushMillis() {
+        return phaseMillis(BackupJob.Phase.FLUSHED);
+    }
+
+    @Override
+    public long getLastScanMillis() {
+        return lastScanMillis;
+    }
+
+    @Override
+    public long getLastCaptureMillis() {
+        return phaseMillis(BackupJob.Phase.CAPTURING);
+    }
+
+    @Override
+    public long getLastCompressMillis() {
+        return phaseMillis(BackupJob.Phase.COMPRESSING);
+    }
+
+    @Override
+    public long getLastDurationMillis() {
+        return getLastSaveMillis() + getLastFlushMillis() + getLastCaptureMillis() + getLastCompressMillis();
+    }
+
+    @Override
+    public long getLastBytesRead() {
+        return lastBytesRead;
+    }
+
+    @Override
+    public long getLastBytesWritten() {
+        return lastBytesWritten;
+    }
+
+    @Override
+    public long getLastInputBytes() {
+        return lastJob == null ? 0 : lastJob.getInputBytes();
+    }
+
+    @Override
+    public long getLastOutputBytes() {
+        return lastJob == null ? 0 : lastJob.getOutputBytes();
+    }
+
+    @Override
+    public int getLastFileCount() {
+        return lastJob == null ? 0 : lastJob.getFileCount();
+    }
+
+    @Override
+    public double getLastThroughputMBps() {
+        long millis = getLastCompressMillis();
+        return millis > 0 ? getLastInputBytes() / (1024.0 * 1024.0) / (millis / 1000.0) : 0;
+    }
+
+    @Override
+    public long getLastFinishedAt() {
+        return lastFinishedAt;
+    }
+
+    @Override
+    public synchronized List<String> getSlowestEntries() {
+        return lastSlowest.stream()
+                .map(entry -> String.format("%s: %dms, %d KB", entry.path(), entry.nanos() / 1_000_000, entry.bytes() / 1024))
+                .toList();
+    }
+
+    private long phaseMillis(BackupJob.Phase phase) {
+        return lastJob == null ? 0 : lastJob.getDurationMillis(phase);
+    }
+
+    /**
+     * @return the lines shown by {@code /nyabackup stats}
+     */
+    public List<String> describe() {
+        List<String> lines = new ArrayList<>();
+        lines.add("Backups: " + getBackupCount() + " done, " + getFailedBackupCount() + " failed, "
+                + getSkippedBackupCount() + " skipped");
+        lines.add((isBackupRunning() ? "A backup is running" : "No backup is running") + ", " + getQueuedBackupCount() + " waiting");
+        if (lastJob == null) {
+            return lines;
+        }
+        lines.add("Last backup: " + lastJob.getName() + " (" + lastJob.getPhase().name().toLowerCase() + ")");
+        lines.add("Waited " + getLastQueueWaitMillis() + "ms, saving " + getLastSaveMillis() + "ms, flush "
+                + getLastFlushMillis() + "ms, scan " + getLastScanMillis() + "ms, capture " + getLastCaptureMillis()
+                + "ms, compress " + getLastCompressMillis() + "ms");
+        lines.add("Main thread " + getLastMainThreadMillis() + "ms over " + lastJob.getSaveTicks() + " ticks");
+        lines.add(String.format("%d files, %d MB -> %d MB at %.1f MB/s, read %d MB, wrote %d MB",
+                getLastFileCount(), getLastInputBytes() / (1024 * 1024), getLastOutputBytes() / (1024 * 1024),
+                getLastThroughputMBps(), getLastBytesRead() / (1024 * 1024), getLastBytesWritten() / (1024 * 1024)));
+        List<String> slowestEntries = getSlowestEntries();
+        if (!slowestEntries.isEmpty()) {
+            lines.add("Slowest files:");
+            slowestEntries.forEach(entry -> lines.add("  " + entry));
+        }
+        return lines;
+    }
+
+    public String toPrometheus() {
+        StringBuilder out = new StringBuilder();
+        metric(out, "nyabackup_backups_total", "counter", "Finished backups", getBackupCount());
+        metric(out, "nyabackup_backups_failed_total", "counter", "Failed backups", getFailedBackupCount());
+        metric(out, "nyabackup_backups_skipped_total", "counter", "Automatic backups skipped because nothing changed", getSkippedBackupCount());
+        metric(out, "nyabackup_running", "gauge", "Whether a backup is running", isBackupRunning() ? 1 : 0);
+        metric(out, "nyabackup_queued", "gauge", "Backups waiting for the running one", getQueuedBackupCount());
+        metric(out, "nyabackup_read_bytes_total", "counter", "Bytes read from the server files", getTotalBytesRead());
+        metric(out, "nyabackup_written_bytes_total", "counter", "Bytes written to backups", getTotalBytesWritten());
+
+        out.append("# HELP nyabackup_last_phase_seconds Duration of each phase of the last backup\n");
+        out.append("# TYPE nyabackup_last_phase_seconds gauge\n");
+        Map<String, Long> phases = new LinkedHashMap<>();
+        phases.put("queue", getLastQueueWaitMillis());
+        phases.put("saving", getLastSaveMillis());
+        phases.put("flush", getLastFlushMillis());
+        phases.put("scan", getLastScanMillis());
+        phases.put("capture", getLastCaptureMillis());
+        phases.put("compress", getLastCompressMillis());
+        phases.forEach((phase, millis) -> out.append("nyabackup_last_phase_seconds{phase=\"").append(phase)
+                .append("\"} ").append(millis / 1000.0).append('\n'));
+
+        metric(out, "nyabackup_last_main_thread_seconds", "gauge", "Main thread time the last backup took", getLastMainThreadMillis() / 1000.0);
+        metric(out, "nyabackup_last_input_bytes", "gauge", "Uncompressed size of the last backup", getLastInputBytes());
+        metric(out, "nyabackup_last_output_bytes", "gauge", "Size of the last backup on disk", getLastOutputBytes());
+        metric(out, "nyabackup_last_files", "gauge", "Files in the last backup", getLastFileCount());
+        metric(out, "nyabackup_last_finished_timestamp_seconds", "gauge", "When the last backup finished", getLastFinishedAt() / 1000.0);
+        return out.toString();
+    }
+
+    private static void metric(StringBuilder out, String name, String type, String help, double value) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    private record SlowEntry(String path, long nanos, long bytes) {
+    }
+}
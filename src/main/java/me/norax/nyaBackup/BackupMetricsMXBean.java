@@ -0,0 +1,54 @@
+package me.norax.nyaBackup;
+
+import java.util.List;
+
+/**
+ * What {@link BackupMetrics} exposes over JMX, as {@code me.norax.nyaBackup:type=BackupMetrics}.
+ */
+public interface BackupMetricsMXBean {
+    long getBackupCount();
+
+    long getFailedBackupCount();
+
+    long getSkippedBackupCount();
+
+    boolean isBackupRunning();
+
+    int getQueuedBackupCount();
+
+    long getTotalBytesRead();
+
+    long getTotalBytesWritten();
+
+    long getLastQueueWaitMillis();
+
+    long getLastSaveMillis();
+
+    long getLastMainThreadMillis();
+
+    long getLastFlushMillis();
+
+    long getLastScanMillis();
+
+    long getLastCaptureMillis();
+
+    long getLastCompressMillis();
+
+    long getLastDurationMillis();
+
+    long getLastBytesRead();
+
+    long getLastBytesWritten();
+
+    long getLastInputBytes();
+
+    long getLastOutputBytes();
+
+    int getLastFileCount();
+
+    double getLastThroughputMBps();
+
+    long getLastFinishedAt();
+
+    List<String> getSlowestEntries();
+}
@@ -0,0 +1,229 @@
+package me.norax.nyaBackup;
+
+import me.norax.nyaBackup.helpers.CronSchedule;
+import me.norax.nyaBackup.helpers.Logger;
+import org.bukkit.scheduler.BukkitTask;
+import org.jetbrains.annotations.Nullable;
+
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Makes sure only one backup runs at a time.
+ * <p>
+ * Manual backups that arrive while one is running wait in a small queue,
+ * automatic ones are coalesced (at most one waits). Automatic backups are also
+ * held back while the server is lagging, up to {@code robot.max_delay}, and
+ * queued manual backups always start before them.
+ * Units with a schedule of their own ({@code units.overrides}) get their own timer.
+ * New backups also wait while a world is hot restored.
+ */
+public class BackupScheduler {
+    private static final int MAX_QUEUED = 3;
+    private static final long LAG_RECHECK_TICKS = 20L * 30;
+
+    private final NyaBackup plugin;
+    private final ConfigManager config;
+    private final Deque<Request> queue = new ArrayDeque<>();
+    private BackupJob running;
+    private final Map<String, BukkitTask> timers = new HashMap<>();
+    private BukkitTask deferTask;
+    private boolean paused;
+
+    public BackupScheduler(NyaBackup plugin) {
+        this.plugin = plugin;
+        this.config = plugin.getConfigManager();
+    }
+
+    /**
+     * Runs a backup now, or as soon as the running one finished.
+     *
+     * @return completes with the job once it started, or with {@code null} if it was dropped
+     */
+    public CompletableFuture<BackupJob> submit(String name, boolean manual) {
+        return submit(name, manual, Set.of());
+    }
+
+    /**
+     * @param units see {@link BackupManager#createBackup(String, boolean, Set)}
+     */
+    public synchronized CompletableFuture<BackupJob> submit(String name, boolean manual, Set<String> units) {
+        CompletableFuture<BackupJob> started = new CompletableFuture<>();
+        Request request = new Request(name, manual, units, System.currentTimeMillis(), started);
+
+        // a delayed automatic backup should not hold back a manual one
+        if (running == null && !paused && (manual || (queue.isEmpty() && deferTask == null))) {
+            start(request);
+            return started;
+        }
+
+        if (!manual && queue.stream().anyMatch(queued -> !queued.manual() && queued.units().equals(units))) {
+            Logger.debug("An automatic backup is already waiting, skipping this one");
+            started.complete(null);
+        } else if (queue.size() >= MAX_QUEUED) {
+            Logger.warn("Too many backups are waiting, skipping this one");
+            started.complete(null);
+        } else {
+            queue.add(request);
+            Logger.info((paused ? "A world is being restored" : "A backup is already running") + ", queued as #" + queue.size());
+        }
+        return started;
+    }
+
+    public synchronized boolean isRunning() {
+        return running != null;
+    }
+
+    public synchronized int getQueueSize() {
+        return queue.size();
+    }
+
+    /**
+     * Holds back new backups, for as long as a world is being swapped under the server.
+     *
+     * @return {@code false} if a backup is running right now
+     */
+    public synchronized boolean pause() {
+        if (running != null) return false;
+        paused = true;
+        return true;
+    }
+
+    public synchronized void resume() {
+        paused = false;
+        if (running == null && deferTask == null && !queue.isEmpty()) {
+            start(next());
+        }
+    }
+
+    private synchronized void start(Request request) {
+        if (!request.manual() && isLagging()) {
+            long waited = System.currentTimeMillis() - request.submittedAt();
+            if (waited < parseInterval(config.getMaxBackupDelay()) * 50) {
+                Logger.debug("Server is lagging, delaying the automatic backup");
+                queue.addFirst(request);
+                Request manualRequest = pollManual();
+                if (manualRequest != null) {
+                    // the automatic one is looked at again once this finished
+                    start(manualRequest);
+                    return;
+                }
+                deferTask = plugin.getServer().getScheduler().runTaskLater(plugin.getBukkitPlugin(), this::resumeDeferred, LAG_RECHECK_TICKS);
+                return;
+            }
+            Logger.warn("Server is still lagging after the maximum delay, backing up anyway");
+        }
+
+        running = plugin.getBackupManager().createBackup(request.name(), request.manual(), request.units());
+        running.setQueueWaitMillis(System.currentTimeMillis() - request.submittedAt());
+        request.started().complete(running);
+        running.getCompletion().whenComplete((job, error) -> finished());
+    }
+
+    private synchronized void resumeDeferred() {
+        deferTask = null;
+        if (running == null && !paused && !queue.isEmpty()) {
+            start(next());
+        }
+    }
+
+    private synchronized void finished() {
+        running = null;
+        if (deferTask == null && !paused && !queue.isEmpty()) {
+            start(next());
+        }
+    }
+
+    /**
+     * Manual backups go first, a delayed automatic backup should not hold them back.
+     */
+    private Request next() {
+        Request manualRequest = pollManual();
+        return manualRequest != null ? manualRequest : queue.poll();
+    }
+
+    private @Nullable Request pollManual() {
+        Iterator<Request> requests = queue.iterator();
+        while (requests.hasNext()) {
+            Request request = requests.next();
+            if (request.manual()) {
+                requests.remove();
+                return request;
+            }
+        }
+        return null;
+    }
+
+    private boolean isLagging() {
+        double minTps = config.getMinTps();
+        double maxMspt = config.getMaxMspt();
+        return (minTps > 0 && plugin.getServer().getTPS()[0] < minTps)
+                || (maxMspt > 0 && plugin.getServer().getAverageTickTime() > maxMspt);
+    }
+
+    public void scheduleAutomaticBackups() {
+        schedule("", config.getBackupCron(), config.getBackupInterval(), Set.of());
+
+        if (config.isUnitsEnabled()) {
+            for (String unit : config.getUnitOverrides()) {
+                if (config.hasUnitSchedule(unit)) {
+                    schedule(unit, config.getUnitCron(unit), config.getUnitInterval(unit), Set.of(unit));
+                }
+            }
+        }
+    }
+
+    private synchronized void schedule(String key, @Nullable String cron, String interval, Set<String> units) {
+        if (cron != null && !cron.isBlank()) {
+            scheduleNext(key, new CronSchedule(cron), units);
+            return;
+        }
+
+        long ticks = parseInterval(interval);
+        timers.put(key, plugin.getServer().getScheduler().runTaskTimer(plugin.getBukkitPlugin(), () -> submit("", false, units), ticks, ticks));
+    }
+
+    private synchronized void scheduleNext(String key, CronSchedule schedule, Set<String> units) {
+        ZonedDateTime now = ZonedDateTime.now();
+        long millis = Duration.between(now, schedule.next(now)).toMillis();
+        long ticks = Math.max(1, millis / 50);
+
+        timers.put(key, plugin.getServer().getScheduler().runTaskLater(plugin.getBukkitPlugin(), () -> {
+            submit("", false, units);
+            scheduleNext(key, schedule, units);
+        }, ticks));
+    }
+
+    static long parseInterval(String interval) {
+        int value = Integer.parseInt(interval.replaceAll("[^0-9]", ""));
+        String unit = interval.replaceAll("[0-9]", "");
+
+        return switch (unit.toLowerCase()) {
+            case "s" -> value * 20L;
+            case "m" -> value * 20L * 60L;
+            case "h" -> value * 20L * 60L * 60L;
+            default -> value * 20L * 60L * 60L * 24L;
+        };
+    }
+
+    public synchronized void shutdown() {
+        timers.values().forEach(BukkitTask::cancel);
+        timers.clear();
+        if (deferTask != null) {
+            deferTask.cancel();
+        }
+        queue.forEach(request -> request.started().complete(null));
+        queue.clear();
+    }
+
+    private record Request(String name, boolean manual, Set<String> units, long submittedAt,
+                           CompletableFuture<BackupJob> started) {
+    }
+}
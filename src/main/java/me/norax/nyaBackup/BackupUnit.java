@@ -0,0 +1,48 @@
+package me.norax.nyaBackup;
+
+import org.bukkit.World;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * A part of the server that gets its own archive when {@code units.enabled} is
+ * set: one per world (named after it, holding its folder), and {@code server}
+ * for everything else (plugins, configs, ...).
+ *
+ * @param folder the world folder relative to the server, {@code null} for the server unit
+ */
+public record BackupUnit(String name, @Nullable String folder) {
+    public static final String SERVER = "server";
+
+    public static BackupUnit of(World world, Path serverDir) {
+        String folder = serverDir.relativize(world.getWorldFolder().toPath()).toString().replace('\\', '/');
+        return new BackupUnit(world.getName(), folder);
+    }
+
+    public static BackupUnit server() {
+        return new BackupUnit(SERVER, null);
+    }
+
+    public boolean isWorld() {
+        return folder != null;
+    }
+
+    /**
+     * @param relativePath a path relative to the server, with {@code /} separators
+     */
+    public boolean contains(String relativePath) {
+        return folder != null && relativePath.startsWith(folder + "/");
+    }
+
+    /**
+     * @return the world unit holding the path, {@code null} if it is in none of them
+     */
+    public static @Nullable BackupUnit find(List<BackupUnit> units, String relativePath) {
+        for (BackupUnit unit : units) {
+            if (unit.contains(relativePath)) return unit;
+        }
+        return null;
+    }
+}
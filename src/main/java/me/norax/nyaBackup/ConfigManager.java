@@ -1,9 +1,11 @@
 package me.norax.nyaBackup;
 
+import org.bukkit.configuration.ConfigurationSection;
 import org.bukkit.configuration.file.FileConfiguration;
 import org.jetbrains.annotations.Nullable;
 
 import java.util.List;
+import java.util.Set;
 
 public class ConfigManager {
     private final NyaBackup plugin;
@@ -38,12 +40,235 @@ public class ConfigManager {
         return config.getString("robot.every", "1d");
     }
 
+    public @Nullable String getBackupCron() {
+        return config.getString("robot.cron", "");
+    }
+
+    public double getMinTps() {
+        return config.getDouble("robot.min_tps", 0);
+    }
+
+    public double getMaxMspt() {
+        return config.getDouble("robot.max_mspt", 0);
+    }
+
+    public String getMaxBackupDelay() {
+        return config.getString("robot.max_delay", "30m");
+    }
+
+    public boolean isSkipUnchanged() {
+        return config.getBoolean("robot.skip_unchanged", true);
+    }
+
     public int getMaxBackups() {
         return config.getInt("robot.max", 5);
     }
 
+    public int getRetention(String tier) {
+        return Math.max(0, config.getInt("retention." + tier, 0));
+    }
+
+    /**
+     * A unit with any retention setting of its own only follows those, the others follow the global ones.
+     */
+    public int getMaxBackups(@Nullable String unit) {
+        return hasUnitRetention(unit) ? config.getInt(unitKey(unit, "max"), 5) : getMaxBackups();
+    }
+
+    public int getRetention(@Nullable String unit, String tier) {
+        return hasUnitRetention(unit) ? Math.max(0, config.getInt(unitKey(unit, tier), 0)) : getRetention(tier);
+    }
+
+    private boolean hasUnitRetention(@Nullable String unit) {
+        if (unit == null) return false;
+        for (String key : new String[]{"max", "hourly", "daily", "weekly", "monthly"}) {
+            if (config.contains(unitKey(unit, key))) return true;
+        }
+        return false;
+    }
+
+    public long getRetentionMaxBytes() {
+        String size = config.getString("retention.max_size", "0").trim().toUpperCase();
+        String unit = size.replaceAll("[0-9.]", "").replace("B", "");
+        double value = Double.parseDouble(size.replaceAll("[^0-9.]", "").isEmpty() ? "0" : size.replaceAll("[^0-9.]", ""));
+
+        return (long) (value * switch (unit) {
+            case "K" -> 1024L;
+            case "M" -> 1024L * 1024;
+            case "G" -> 1024L * 1024 * 1024;
+            case "T" -> 1024L * 1024 * 1024 * 1024;
+            default -> 1L;
+        });
+    }
+
+    public boolean isUnitsEnabled() {
+        return config.getBoolean("units.enabled", false);
+    }
+
+    public int getUnitThreads() {
+        return Math.max(1, config.getInt("units.parallel", 2));
+    }
+
+    /**
+     * @return the units that have settings of their own
+     */
+    public Set<String> getUnitOverrides() {
+        ConfigurationSection section = config.getConfigurationSection("units.overrides");
+        return section == null ? Set.of() : section.getKeys(false);
+    }
+
+    public String getUnitInterval(String unit) {
+        return config.getString(unitKey(unit, "every"), "");
+    }
+
+    public String getUnitCron(String unit) {
+        return config.getString(unitKey(unit, "cron"), "");
+    }
+
+    public boolean hasUnitSchedule(String unit) {
+        return !getUnitInterval(unit).isBlank() || !getUnitCron(unit).isBlank();
+    }
+
+    private static String unitKey(String unit, String key) {
+        return "units.overrides." + unit + "." + key;
+    }
+
     public String getCompressionMethod() {
-        return config.getString("compression-method", "7zp");
+        return config.getString("compression_method", config.getString("compression-method", "7z"));
+    }
+
+    public int getCompressionLevel() {
+        return config.getInt("compression_level", 0);
+    }
+
+    public boolean isCompressionProbe() {
+        return config.getBoolean("compression_probe", true);
+    }
+
+    public List<String> getStoreExtensions() {
+        return config.getStringList("store_extensions");
+    }
+
+    public int getCompressionThreads() {
+        int threads = config.getInt("performance.threads", 0);
+        return threads > 0 ? threads : Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+    }
+
+    public double getReadLimit() {
+        return config.getDouble("performance.read_limit", 0) * 1024 * 1024;
+    }
+
+    public double getWriteLimit() {
+        return config.getDouble("performance.write_limit", 0) * 1024 * 1024;
+    }
+
+    public boolean isAdaptiveThrottle() {
+        return config.getBoolean("performance.adaptive", false);
+    }
+
+    public double getTargetMspt() {
+        return config.getDouble("performance.target_mspt", 40);
+    }
+
+    public double getSaveBudgetMillis() {
+        return config.getDouble("performance.save_budget", 5);
+    }
+
+    public long getFlushQuietMillis() {
+        return config.getLong("performance.flush_quiet", 1000);
+    }
+
+    public int getIoConcurrency() {
+        return Math.max(1, config.getInt("performance.io_concurrency", 64));
+    }
+
+    public boolean isWatchFiles() {
+        return config.getBoolean("performance.watch_files", false);
+    }
+
+    public int getMetricsPort() {
+        return config.getInt("metrics.port", 0);
+    }
+
+    public String getMetricsBind() {
+        return config.getString("metrics.bind", "127.0.0.1");
+    }
+
+    public boolean isOffsiteEnabled() {
+        return config.getBoolean("offsite.enabled", false);
+    }
+
+    public String getOffsiteEndpoint() {
+        return config.getString("offsite.endpoint", "https://s3.amazonaws.com");
+    }
+
+    public String getOffsiteRegion() {
+        return config.getString("offsite.region", "us-east-1");
+    }
+
+    public String getOffsiteBucket() {
+        return config.getString("offsite.bucket", "");
+    }
+
+    public String getOffsitePrefix() {
+        return config.getString("offsite.prefix", "");
+    }
+
+    public String getOffsiteAccessKey() {
+        return config.getString("offsite.access_key", "");
+    }
+
+    public String getOffsiteSecretKey() {
+        return config.getString("offsite.secret_key", "");
+    }
+
+    public boolean isOffsitePathStyle() {
+        return config.getBoolean("offsite.path_style", false);
+    }
+
+    public int getOffsitePartSize() {
+        return Math.max(5, config.getInt("offsite.part_size", 16)) * 1024 * 1024;
+    }
+
+    public int getOffsiteParallelUploads() {
+        return Math.max(1, config.getInt("offsite.parallel_uploads", 4));
+    }
+
+    public int getOffsiteKeepLocal() {
+        return Math.max(0, config.getInt("offsite.keep_local", 0));
+    }
+
+    public int getDedupChunkSize() {
+        return Math.max(4, config.getInt("dedup.chunk_size", 256)) * 1024;
+    }
+
+    public boolean isIncrementalEnabled() {
+        return config.getBoolean("dedup.incremental", true);
+    }
+
+    public int getMaxDeltaChain() {
+        return Math.max(1, config.getInt("dedup.max_chain", 24));
+    }
+
+    public boolean isTrustRegionTimestamps() {
+        return config.getBoolean("dedup.trust_region_timestamps", true);
+    }
+
+    public boolean isSnapshotEnabled() {
+        return config.getBoolean("snapshot.enabled", false);
+    }
+
+    public static List<String> getHardlinkPatterns() {
+        return config.getStringList("snapshot.hardlink");
+    }
+
+    public @Nullable String getCacheFolder() {
+        return config.getString("optimizations.cache_folder", "");
+    }
+
+    public String getCacheHashAlgorithm() {
+        String algorithm = config.getString("optimizations.cache_hash", "sha256");
+        return "crc32c".equalsIgnoreCase(algorithm) ? "crc32c" : "sha256";
     }
 
     public static List<String> getExclusions() {
@@ -0,0 +1,171 @@
+package me.norax.nyaBackup;
+
+import me.norax.nyaBackup.helpers.Logger;
+import org.bukkit.Location;
+import org.bukkit.Server;
+import org.bukkit.World;
+import org.bukkit.WorldCreator;
+import org.bukkit.entity.Player;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.*;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.stream.Stream;
+
+import static net.lingala.zip4j.util.Zip4jUtil.createDirectoryIfNotExists;
+import static org.codehaus.plexus.util.FileUtils.deleteDirectory;
+
+/**
+ * Swaps one world for a restored copy while the rest of the server keeps running.
+ * Only unloading and loading the world happen on the main thread, the folders are
+ * renamed in between on the calling thread. Backups are held back meanwhile.
+ */
+class HotRestore {
+    private static final String OLD_SUFFIX = ".nyabackup-old";
+
+    private final NyaBackup plugin;
+    private final Server server;
+    private final String worldName;
+    private final Map<UUID, Location> evacuated = new HashMap<>();
+    private WorldCreator creator;
+    private Path worldFolder;
+    private long pauseNanos;
+
+    HotRestore(NyaBackup plugin, String worldName) {
+        this.plugin = plugin;
+        this.server = plugin.getServer();
+        this.worldName = worldName;
+    }
+
+    /**
+     * Replaces the world folder with {@code stagedFolder}, which must be on the
+     * same disk for the swap to be a single rename. Must not run on the main thread.
+     */
+    void swapIn(Path stagedFolder) throws IOException {
+        BackupScheduler scheduler = plugin.getBackupScheduler();
+        if (!scheduler.pause()) {
+            throw new IOException("A backup is running, try again once it finished");
+        }
+
+        try {
+            long offlineStart = System.nanoTime();
+            onMainThread(this::unload);
+
+            Path oldFolder = worldFolder.resolveSibling(worldFolder.getFileName() + OLD_SUFFIX);
+            try {
+                swap(stagedFolder, oldFolder);
+            } finally {
+                // the world comes back either way, restored or as it was
+                onMainThread(this::load);
+                Logger.info("World " + worldName + " was offline for " + (System.nanoTime() - offlineStart) / 1_000_000
+                        + "ms, the main thread paused for " + pauseNanos / 1_000_000 + "ms");
+            }
+            deleteDirectory(oldFolder.toFile());
+        } finally {
+            scheduler.resume();
+        }
+    }
+
+    /**
+     * Main thread. Sends the players to the main world's spawn and unloads the
+     * world without saving it, its files are about to be replaced.
+     */
+    private Void unload() throws IOException {
+        long start = System.nanoTime();
+        World world = server.getWorld(worldName);
+        if (world == null) {
+            throw new IOException("There is no loaded world called " + worldName);
+        }
+        World fallback = server.getWorlds().get(0);
+        if (world.equals(fallback)) {
+            throw new IOException("The main world can't be unloaded, restore it with /nyabackup load");
+        }
+
+        creator = new WorldCreator(worldName).copy(world);
+        worldFolder = world.getWorldFolder().toPath();
+        for (Player player : world.getPlayers()) {
+            evacuated.put(player.getUniqueId(), player.getLocation());
+            player.teleport(fallback.getSpawnLocation());
+        }
+
+        boolean unloaded = server.unloadWorld(world, false);
+        pauseNanos += System.nanoTime() - start;
+        if (!unloaded) {
+            evacuated.forEach((uuid, location) -> {
+                Player player = server.getPlayer(uuid);
+                if (player != null) player.teleport(location);
+            });
+            throw new IOException("The server refused to unload " + worldName);
+        }
+        return null;
+    }
+
+    /**
+     * Main thread. Loads the world again and sends the players back where they were.
+     */
+    private Void load() throws IOException {
+        long start = System.nanoTime();
+        World world = server.createWorld(creator);
+        pauseNanos += System.nanoTime() - start;
+        if (world == null) {
+            throw new IOException("Failed to load " + worldName + " again");
+        }
+
+        evacuated.forEach((uuid, location) -> {
+            Player player = server.getPlayer(uuid);
+            if (player == null) return;
+            location.setWorld(world);
+            player.teleportAsync(location);
+        });
+        return null;
+    }
+
+    /**
+     * Moves the live folder aside and the staged one into its place, putting the
+     * live folder back if the second move fails.
+     */
+    private void swap(Path stagedFolder, Path oldFolder) throws IOException {
+        deleteDirectory(oldFolder.toFile());
+        Files.move(worldFolder, oldFolder, StandardCopyOption.ATOMIC_MOVE);
+        try {
+            moveDirectory(stagedFolder, worldFolder);
+        } catch (IOException e) {
+            deleteDirectory(worldFolder.toFile());
+            Files.move(oldFolder, worldFolder, StandardCopyOption.ATOMIC_MOVE);
+            throw e;
+        }
+    }
+
+    private static void moveDirectory(Path source, Path target) throws IOException {
+        try {
+            Files.move(source, target, StandardCopyOption.ATOMIC_MOVE);
+            return;
+        } catch (AtomicMoveNotSupportedException e) {
+            Logger.warn("The plugin folder is on another disk than the server, copying the restored world instead of renaming it");
+        }
+
+        try (Stream<Path> paths = Files.walk(source)) {
+            for (Path path : paths.filter(Files::isRegularFile).toList()) {
+                Path targetPath = target.resolve(source.relativize(path).toString());
+                createDirectoryIfNotExists(targetPath.getParent().toFile());
+                Files.move(path, targetPath, StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+    }
+
+    private <T> T onMainThread(Callable<T> task) throws IOException {
+        try {
+            return server.getScheduler().callSyncMethod(plugin.getBukkitPlugin(), task).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Restore interrupted");
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException io ? io : new IOException(e.getCause());
+        }
+    }
+}
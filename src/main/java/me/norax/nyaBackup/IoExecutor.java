@@ -0,0 +1,186 @@
+package me.norax.nyaBackup;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.function.BiPredicate;
+
+/**
+ * The plugin's own threads, so backups do not hold on to Bukkit's async pool
+ * that every other plugin shares.
+ * <p>
+ * Backups and restores run on platform threads of {@link #getJobExecutor()}.
+ * Folders like {@code playerdata} or plugin data hold thousands of tiny files
+ * whose cost is opening and stat-ing them rather than reading, so those calls
+ * go to virtual threads instead, at most {@code performance.io_concurrency} at
+ * once, and {@link #prefetch} hands the results back in order to the archive writer.
+ */
+public class IoExecutor {
+    /**
+     * Files up to this size are read whole by {@link #prefetch}.
+     */
+    public static final int SMALL_FILE = 256 * 1024;
+
+    private final IoThrottle throttle;
+    private final int concurrency;
+    private final Semaphore permits;
+    private final ExecutorService virtualThreads = Executors.newThreadPerTaskExecutor(
+            Thread.ofVirtual().name("NyaBackup-io-", 0).factory());
+    private final ExecutorService jobs = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "NyaBackup-job");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public IoExecutor(NyaBackup plugin) {
+        this.throttle = plugin.getIoThrottle();
+        this.concurrency = plugin.getConfigManager().getIoConcurrency();
+        this.permits = new Semaphore(concurrency);
+    }
+
+    /**
+     * Where backups and restores run.
+     */
+    public Executor getJobExecutor() {
+        return jobs;
+    }
+
+    /**
+     * Runs blocking file calls on a virtual thread. Waits while all the permits
+     * are taken, so callers can't pile up more work than the disk keeps up with.
+     */
+    public <T> CompletableFuture<T> submit(IoTask<T> task) throws InterruptedIOException {
+        try {
+            permits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Backup interrupted");
+        }
+
+        CompletableFuture<T> result = new CompletableFuture<>();
+        try {
+            virtualThreads.execute(() -> {
+                try {
+                    result.complete(task.call());
+                } catch (Throwable e) {
+                    result.completeExceptionally(e);
+                } finally {
+                    permits.release();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            permits.release();
+            throw new InterruptedIOException("The plugin is shutting down");
+        }
+        return result;
+    }
+
+    /**
+     * Stats every file and reads the small ones ahead of the caller.
+     */
+    public Prefetch prefetch(List<Path> files) throws InterruptedIOException {
+        return prefetch(files, (file, attributes) -> true);
+    }
+
+    /**
+     * @param read whether a small file's content is needed, called on the virtual thread after the stat
+     */
+    public Prefetch prefetch(List<Path> files, BiPredicate<Path, BasicFileAttributes> read) throws InterruptedIOException {
+        return new Prefetch(files, read);
+    }
+
+    public void shutdown() {
+        // running backups are left to finish, these threads never keep the server alive
+        jobs.shutdown();
+        virtualThreads.shutdown();
+    }
+
+    @FunctionalInterface
+    public interface IoTask<T> {
+        T call() throws IOException;
+    }
+
+    /**
+     * @param size     {@code -1} when the file was deleted before it was read
+     * @param modified epoch millis
+     * @param data     the whole file for small files, {@code null} for big ones that are read as a stream
+     */
+    public record FileData(Path file, long size, long modified, byte @Nullable [] data) {
+        public boolean isMissing() {
+            return size < 0;
+        }
+    }
+
+    /**
+     * Keeps up to {@code performance.io_concurrency} files read ahead of the caller.
+     */
+    public class Prefetch implements Closeable {
+        private final Iterator<Path> files;
+        private final BiPredicate<Path, BasicFileAttributes> read;
+        private final Deque<CompletableFuture<FileData>> ahead = new ArrayDeque<>();
+
+        private Prefetch(List<Path> files, BiPredicate<Path, BasicFileAttributes> read) throws InterruptedIOException {
+            this.files = files.iterator();
+            this.read = read;
+            fill();
+        }
+
+        public boolean hasNext() {
+            return !ahead.isEmpty();
+        }
+
+        public FileData next() throws IOException {
+            CompletableFuture<FileData> next = ahead.poll();
+            if (next == null) throw new IllegalStateException("No file left");
+            fill();
+            try {
+                return next.join();
+            } catch (CompletionException e) {
+                throw e.getCause() instanceof IOException io ? io : new IOException(e.getCause());
+            }
+        }
+
+        private void fill() throws InterruptedIOException {
+            while (ahead.size() < concurrency && files.hasNext()) {
+                Path file = files.next();
+                ahead.add(submit(() -> load(file, read)));
+            }
+        }
+
+        @Override
+        public void close() {
+            ahead.forEach(future -> future.cancel(false));
+            ahead.clear();
+        }
+    }
+
+    private FileData load(Path file, BiPredicate<Path, BasicFileAttributes> read) throws IOException {
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+            long modified = attributes.lastModifiedTime().toMillis();
+            if (attributes.size() > SMALL_FILE || !read.test(file, attributes)) {
+                return new FileData(file, attributes.size(), modified, null);
+            }
+
+            byte[] data;
+            try (InputStream in = throttle.read(Files.newInputStream(file))) {
+                data = in.readAllBytes();
+            }
+            return new FileData(file, data.length, modified, data);
+        } catch (NoSuchFileException e) {
+            return new FileData(file, -1, 0, null);
+        }
+    }
+}
@@ -0,0 +1,198 @@
+package me.norax.nyaBackup;
+
+import me.norax.nyaBackup.helpers.Logger;
+import me.norax.nyaBackup.helpers.TokenBucket;
+import org.bukkit.scheduler.BukkitTask;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+
+/**
+ * Caps how fast backups read the server files and write archives, so they do
+ * not starve the server of disk bandwidth while it loads chunks.
+ * <p>
+ * In adaptive mode the tick time is sampled every second: while it is above
+ * {@code performance.target_mspt} the limits are halved, and they slowly grow
+ * back once the server keeps up again. Without a fixed limit the fastest rate
+ * seen so far is used as the starting point, or {@link #UNMEASURED_RATE} until
+ * a backup ran at full speed for a second.
+ */
+public class IoThrottle {
+    private static final double MIN_FACTOR = 0.05;
+    private static final double RECOVER_FACTOR = 1.25;
+    // what a slow hard drive manages, used before the real speed was ever seen
+    private static final double UNMEASURED_RATE = 32 * 1024 * 1024;
+
+    private final NyaBackup plugin;
+    private final TokenBucket reads;
+    private final TokenBucket writes;
+    private final double readLimit;
+    private final double writeLimit;
+    private final double targetMspt;
+    private BukkitTask sampler;
+
+    private double factor = 1;
+    private double readPeak;
+    private double writePeak;
+    private long lastReads;
+    private long lastWrites;
+    private long lastSample = System.nanoTime();
+
+    public IoThrottle(NyaBackup plugin) {
+        ConfigManager config = plugin.getConfigManager();
+        this.plugin = plugin;
+        this.readLimit = config.getReadLimit();
+        this.writeLimit = config.getWriteLimit();
+        this.targetMspt = config.isAdaptiveThrottle() ? config.getTargetMspt() : 0;
+        this.reads = new TokenBucket(readLimit);
+        this.writes = new TokenBucket(writeLimit);
+    }
+
+    public void start() {
+        if (targetMspt > 0) {
+            sampler = plugin.getServer().getScheduler().runTaskTimer(plugin.getBukkitPlugin(), this::sample, 20L, 20L);
+        }
+    }
+
+    public void shutdown() {
+        if (sampler != null) {
+            sampler.cancel();
+        }
+    }
+
+    /**
+     * @return every byte read through the throttle so far, limited or not
+     */
+    public long getBytesRead() {
+        return reads.getConsumed();
+    }
+
+    public long getBytesWritten() {
+        return writes.getConsumed();
+    }
+
+    public void acquireRead(long bytes) throws InterruptedIOException {
+        reads.acquire(bytes);
+    }
+
+    public void acquireWrite(long bytes) throws InterruptedIOException {
+        writes.acquire(bytes);
+    }
+
+    public InputStream read(InputStream in) {
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                int read = super.read();
+                if (read >= 0) reads.acquire(1);
+                return read;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int read = super.read(b, off, len);
+                if (read > 0) reads.acquire(read);
+                return read;
+            }
+        };
+    }
+
+    public OutputStream write(OutputStream out) {
+        return new FilterOutputStream(out) {
+            @Override
+            public void write(int b) throws IOException {
+                writes.acquire(1);
+                out.write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                writes.acquire(len);
+                out.write(b, off, len);
+            }
+        };
+    }
+
+    public SeekableByteChannel write(SeekableByteChannel channel) {
+        return new SeekableByteChannel() {
+            @Override
+            public int read(ByteBuffer dst) throws IOException {
+                return channel.read(dst);
+            }
+
+            @Override
+            public int write(ByteBuffer src) throws IOException {
+                writes.acquire(src.remaining());
+                return channel.write(src);
+            }
+
+            @Override
+            public long position() throws IOException {
+                return channel.position();
+            }
+
+            @Override
+            public SeekableByteChannel position(long newPosition) throws IOException {
+                channel.position(newPosition);
+                return this;
+            }
+
+            @Override
+            public long size() throws IOException {
+                return channel.size();
+            }
+
+            @Override
+            public SeekableByteChannel truncate(long size) throws IOException {
+                channel.truncate(size);
+                return this;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return channel.isOpen();
+            }
+
+            @Override
+            public void close() throws IOException {
+                channel.close();
+            }
+        };
+    }
+
+    private void sample() {
+        long now = System.nanoTime();
+        double seconds = (now - lastSample) / 1_000_000_000.0;
+        long readTotal = reads.getConsumed();
+        long writeTotal = writes.getConsumed();
+        if (factor >= 1) {
+            readPeak = Math.max(readPeak, (readTotal - lastReads) / seconds);
+            writePeak = Math.max(writePeak, (writeTotal - lastWrites) / seconds);
+        }
+        lastSample = now;
+        lastReads = readTotal;
+        lastWrites = writeTotal;
+
+        double previous = factor;
+        double mspt = plugin.getServer().getAverageTickTime();
+        if (mspt > targetMspt) {
+            factor = Math.max(MIN_FACTOR, factor / 2);
+        } else if (mspt < targetMspt * 0.8) {
+            factor = Math.min(1, factor * RECOVER_FACTOR);
+        }
+
+        if (factor != previous) {
+            reads.setRate(scaledLimit(readLimit, readPeak));
+            writes.setRate(scaledLimit(writeLimit, writePeak));
+            Logger.debug("Tick time is " + String.format("%.1f", mspt) + "ms, backup I/O at "
+                    + Math.round(factor * 100) + "% speed");
+        }
+    }
+
+    private double scaledLimit(double limit, double peak) {
+        if (factor >= 1) return limit;
+        double base = limit > 0 ? limit : peak > 0 ? peak : UNMEASURED_RATE;
+        return Math.max(1, base * factor);
+    }
+}
@@ -1,45 +1,85 @@
 package me.norax.nyaBackup;
 
-import me.norax.nyaBackup.commands.Snapshot;
-import org.bukkit.plugin.java.JavaPlugin;
+import org.bukkit.Server;
+import org.bukkit.configuration.file.FileConfiguration;
+import org.bukkit.plugin.Plugin;
+import org.bukkit.plugin.PluginDescriptionFile;
+
+import java.io.File;
 import java.util.logging.Logger;
-import org.bukkit.command.PluginCommand;
 
-public final class NyaBackup extends JavaPlugin {
+/**
+ * Holds the backup services, started and stopped by {@link NyaBackupPlugin}.
+ * Everything it needs from the server goes through the Bukkit {@link Plugin}
+ * it is given, so the tests can run it with their own.
+ */
+public final class NyaBackup {
     private static NyaBackup instance;
+    private final Plugin bukkitPlugin;
     private BackupManager backupManager;
+    private BackupScheduler backupScheduler;
     private ConfigManager configManager;
-    private final Logger logger = getLogger();
+    private IoThrottle ioThrottle;
+    private IoExecutor ioExecutor;
+    private BackupMetrics metrics;
+    private Offsite offsite;
+    private final Logger logger;
 
-    @Override
-    public void onEnable() {
-        instance = this;
+    public NyaBackup(Plugin bukkitPlugin) {
+        this.bukkitPlugin = bukkitPlugin;
+        this.logger = bukkitPlugin.getLogger();
+    }
 
+    /**
+     * Runs before the worlds are loaded.
+     */
+    public void load() {
         try {
-            configManager = new ConfigManager(this);
-            configManager.loadConfig();
+            int restored = BackupManager.applyPendingRestore(getDataFolder().toPath(), getServer().getWorldContainer().toPath());
+            if (restored > 0) {
+                logger.info("Put " + restored + " restored files in place");
+            }
+        } catch (Exception e) {
+            logger.severe("Failed to apply the pending restore: " + e.getMessage());
+        }
+    }
 
-            backupManager = new BackupManager(this);
+    public void enable() throws Exception {
+        instance = this;
 
-            PluginCommand command = getCommand("nyabackup");
-            if (command != null) {
-                command.setExecutor(new Snapshot(this));
-                command.setTabCompleter(new Snapshot(this));
-            }
+        configManager = new ConfigManager(this);
+        configManager.loadConfig();
 
-            if (configManager.isRobotEnabled()) {
-                backupManager.scheduleAutomaticBackups();
-            }
-        } catch (Exception e) {
-            logger.severe(e.getMessage());
-            e.printStackTrace();
-            getServer().getPluginManager().disablePlugin(this);
-            return;
+        ioThrottle = new IoThrottle(this);
+        ioThrottle.start();
+        ioExecutor = new IoExecutor(this);
+
+        metrics = new BackupMetrics(this);
+        metrics.start();
+
+        offsite = new Offsite(this);
+
+        backupManager = new BackupManager(this);
+        backupScheduler = new BackupScheduler(this);
+
+        if (configManager.isRobotEnabled()) {
+            backupScheduler.scheduleAutomaticBackups();
         }
     }
 
-    @Override
-    public void onDisable() {
+    public void disable() {
+        if (backupScheduler != null) {
+            backupScheduler.shutdown();
+        }
+        if (ioThrottle != null) {
+            ioThrottle.shutdown();
+        }
+        if (metrics != null) {
+            metrics.shutdown();
+        }
+        if (ioExecutor != null) {
+            ioExecutor.shutdown();
+        }
         if (backupManager != null) {
             try {
                 backupManager.shutdown();
@@ -53,10 +93,65 @@ public final class NyaBackup extends JavaPlugin {
         return instance;
     }
 
+    /**
+     * The plugin to hand to the scheduler.
+     */
+    public Plugin getBukkitPlugin() {
+        return bukkitPlugin;
+    }
+
+    public Server getServer() {
+        return bukkitPlugin.getServer();
+    }
+
+    public File getDataFolder() {
+        return bukkitPlugin.getDataFolder();
+    }
+
+    public FileConfiguration getConfig() {
+        return bukkitPlugin.getConfig();
+    }
+
+    public void saveDefaultConfig() {
+        bukkitPlugin.saveDefaultConfig();
+    }
+
+    public void reloadConfig() {
+        bukkitPlugin.reloadConfig();
+    }
+
+    public PluginDescriptionFile getDescription() {
+        return bukkitPlugin.getDescription();
+    }
+
+    public Logger getLogger() {
+        return logger;
+    }
+
     public BackupManager getBackupManager() {
         return backupManager;
     }
 
+    public BackupScheduler getBackupScheduler() {
+        return backupScheduler;
+    }
+
+    public IoThrottle getIoThrottle() {
+        return ioThrottle;
+    }
+
+    public IoExecutor getIoExecutor() {
+        return ioExecutor;
+    }
+
+    public BackupMetrics getMetrics() {
+        return metrics;
+    }
+
+    public Offsite getOffsite() {
+        return offsite;
+    }
+
     public ConfigManager getConfigManager() {
         return configManager;
     }
@@ -64,4 +159,4 @@ public final class NyaBackup extends JavaPlugin {
     public Logger getPluginLogger() {
         return logger;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,40 @@
+package me.norax.nyaBackup;
+
+import me.norax.nyaBackup.commands.Snapshot;
+import org.bukkit.command.PluginCommand;
+import org.bukkit.plugin.java.JavaPlugin;
+
+/**
+ * What Paper loads, it only starts and stops {@link NyaBackup} and registers the command.
+ */
+public final class NyaBackupPlugin extends JavaPlugin {
+    private final NyaBackup nyaBackup = new NyaBackup(this);
+
+    @Override
+    public void onLoad() {
+        nyaBackup.load();
+    }
+
+    @Override
+    public void onEnable() {
+        try {
+            nyaBackup.enable();
+        } catch (Exception e) {
+            getLogger().severe(e.getMessage());
+            e.printStackTrace();
+            getServer().getPluginManager().disablePlugin(this);
+            return;
+        }
+
+        PluginCommand command = getCommand("nyabackup");
+        if (command != null) {
+            command.setExecutor(new Snapshot(nyaBackup));
+            command.setTabCompleter(new Snapshot(nyaBackup));
+        }
+    }
+
+    @Override
+    public void onDisable() {
+        nyaBackup.disable();
+    }
+}
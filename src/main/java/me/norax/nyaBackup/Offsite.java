@@ -0,0 +1,181 @@
+package me.norax.nyaBackup;
+
+import me.norax.nyaBackup.helpers.Logger;
+import me.norax.nyaBackup.methods.Compressor;
+import me.norax.nyaBackup.storage.S3Storage;
+import me.norax.nyaBackup.storage.StorageTarget;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Copies backups to the {@code offsite} storage.
+ * <p>
+ * Zip and zstd archives are uploaded while they are written: {@link #tee} hands
+ * every block to the upload right after it reached the local file, so the
+ * upload is finished moments after the archive is. Anything that fails on the
+ * offsite side is only logged, the local backup never depends on it.
+ */
+public class Offsite {
+    private final @Nullable StorageTarget target;
+    private final Map<Path, StorageTarget.Upload> uploads = new ConcurrentHashMap<>();
+
+    public Offsite(NyaBackup plugin) {
+        ConfigManager config = plugin.getConfigManager();
+        this.target = config.isOffsiteEnabled() ? new S3Storage(config.getOffsiteEndpoint(), config.getOffsiteRegion(),
+                config.getOffsiteBucket(), config.getOffsitePrefix(), config.getOffsiteAccessKey(),
+                config.getOffsiteSecretKey(), config.isOffsitePathStyle(), config.getOffsitePartSize(),
+                config.getOffsiteParallelUploads()) : null;
+        if (target != null) {
+            Logger.info("Backups are copied to " + target.describe());
+        }
+    }
+
+    public boolean isEnabled() {
+        return target != null;
+    }
+
+    /**
+     * @return a stream that writes to {@code local} and uploads the same bytes
+     */
+    public OutputStream tee(Path backupFile, OutputStream local) {
+        if (target == null) return local;
+
+        StorageTarget.Upload upload;
+        try {
+            upload = target.startUpload(backupFile.getFileName().toString());
+        } catch (IOException e) {
+            Logger.warn("Can't upload " + backupFile.getFileName() + " while it is written: " + e.getMessage());
+            return local;
+        }
+        uploads.put(backupFile, upload);
+
+        return new FilterOutputStream(local) {
+            private boolean failed;
+
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+                if (failed) return;
+                try {
+                    upload.getStream().write(b, off, len);
+                } catch (IOException e) {
+                    // finish() uploads the finished file instead
+                    Logger.warn("Uploading " + backupFile.getFileName() + " failed, retrying once it is written: " + e.getMessage());
+                    failed = true;
+                    uploads.remove(backupFile);
+                    upload.abort();
+                }
+            }
+        };
+    }
+
+    /**
+     * Makes the offsite copy of a finished backup visible, uploading the whole
+     * file if it was not streamed, along with its checksum.
+     *
+     * @return whether the backup is stored offsite
+     */
+    public boolean finish(Path backupFile) {
+        if (target == null) return false;
+
+        String name = backupFile.getFileName().toString();
+        try {
+            StorageTarget.Upload upload = uploads.remove(backupFile);
+            if (upload != null) {
+                upload.complete();
+            } else {
+                upload(backupFile);
+            }
+            Path checksum = Compressor.checksumFile(backupFile);
+            if (Files.exists(checksum)) {
+                upload(checksum);
+            }
+            Logger.debug("Uploaded " + name + " to " + target.describe());
+            return true;
+        } catch (IOException e) {
+            Logger.warn("Failed to upload " + name + ", it is only kept locally: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Drops the streamed upload of a backup that failed, if there is one.
+     */
+    public void abort(Path backupFile) {
+        StorageTarget.Upload upload = uploads.remove(backupFile);
+        if (upload != null) {
+            upload.abort();
+        }
+    }
+
+    /**
+     * Downloads a backup back into {@code backupFile}.
+     *
+     * @param hash the SHA-256 the backup had when it was made, if known
+     */
+    public void download(Path backupFile, @Nullable String hash) throws IOException {
+        if (target == null) {
+            throw new IOException("Offsite storage is disabled");
+        }
+        String name = backupFile.getFileName().toString();
+        Logger.info("Downloading " + name + " from " + target.describe() + "...");
+        target.download(name, backupFile);
+
+        if (hash != null && !hash.equals(sha256(backupFile))) {
+            Files.delete(backupFile);
+            throw new IOException("The offsite copy of " + name + " is damaged");
+        }
+        Files.writeString(Compressor.checksumFile(backupFile), (hash == null ? sha256(backupFile) : hash) + "  " + name + "\n");
+    }
+
+    public void delete(String name) {
+        if (target == null) return;
+        try {
+            target.delete(name);
+            target.delete(name + ".sha256");
+        } catch (IOException e) {
+            Logger.warn("Failed to delete the offsite copy of " + name + ": " + e.getMessage());
+        }
+    }
+
+    private void upload(Path file) throws IOException {
+        StorageTarget.Upload upload = target.startUpload(file.getFileName().toString());
+        try {
+            Files.copy(file, upload.getStream());
+        } catch (IOException e) {
+            upload.abort();
+            throw e;
+        }
+        upload.complete();
+    }
+
+    private static String sha256(Path file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        try (InputStream in = new DigestInputStream(Files.newInputStream(file), digest)) {
+            in.transferTo(OutputStream.nullOutputStream());
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+}
@@ -0,0 +1,70 @@
+package me.norax.nyaBackup;
+
+import org.bukkit.Server;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Set;
+import java.util.UUID;
+import java.util.function.Predicate;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The part of a backup a partial restore brings back: a whole world, a range
+ * of region files, or the files of one player.
+ *
+ * @param world  the world folder the files belong to
+ * @param player the player whose files are restored, if any
+ * @param filter accepts the entry paths (relative to the server folder) to restore
+ */
+public record RestoreSelection(String description, String world, @Nullable UUID player, Predicate<String> filter) {
+    private static final Pattern REGION_FILE = Pattern.compile("(?:.*/)?(?:region|entities|poi)/r\\.(-?\\d+)\\.(-?\\d+)\\.mca");
+
+    public static RestoreSelection world(String world) {
+        String prefix = world + "/";
+        return new RestoreSelection("world " + world, world, null,
+                entry -> entry.startsWith(prefix) && !entry.endsWith("session.lock"));
+    }
+
+    /**
+     * Region files (with their entities and poi files) between two region coordinates, both included.
+     */
+    public static RestoreSelection regions(String world, int x1, int z1, int x2, int z2) {
+        String prefix = world + "/";
+        int minX = Math.min(x1, x2);
+        int maxX = Math.max(x1, x2);
+        int minZ = Math.min(z1, z2);
+        int maxZ = Math.max(z1, z2);
+
+        return new RestoreSelection("regions " + minX + "," + minZ + " to " + maxX + "," + maxZ + " of " + world, world, null,
+                entry -> {
+                    if (!entry.startsWith(prefix)) return false;
+                    Matcher matcher = REGION_FILE.matcher(entry.substring(prefix.length()));
+                    if (!matcher.matches()) return false;
+                    int x = Integer.parseInt(matcher.group(1));
+                    int z = Integer.parseInt(matcher.group(2));
+                    return x >= minX && x <= maxX && z >= minZ && z <= maxZ;
+                });
+    }
+
+    /**
+     * The inventory, stats and advancements of a player, kept in the main world folder.
+     */
+    public static RestoreSelection player(String mainWorld, UUID uuid) {
+        Set<String> entries = Set.of(
+                mainWorld + "/playerdata/" + uuid + ".dat",
+                mainWorld + "/stats/" + uuid + ".json",
+                mainWorld + "/advancements/" + uuid + ".json");
+        return new RestoreSelection("player " + uuid, mainWorld, uuid, entries::contains);
+    }
+
+    /**
+     * Whether the server has the files open right now, so they can't be replaced until it restarts.
+     */
+    public boolean isInUse(Server server) {
+        if (player != null) {
+            return server.getPlayer(player) != null;
+        }
+        return server.getWorld(world) != null;
+    }
+}
@@ -0,0 +1,120 @@
+package me.norax.nyaBackup;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.temporal.ChronoUnit;
+import java.time.temporal.IsoFields;
+import java.util.*;
+import java.util.function.Function;
+
+/**
+ * Decides which backups to keep: the newest {@code robot.max}, or when any of the
+ * {@code retention} tiers is set, grandfather-father-son style the newest backup
+ * of each of the last N hours, days, weeks and months. The newest backup is always kept.
+ * Units with retention settings under {@code units.overrides} get a policy of their own.
+ */
+public class RetentionPolicy {
+    private final int maxBackups;
+    private final int hourly;
+    private final int daily;
+    private final int weekly;
+    private final int monthly;
+    private final long maxBytes;
+    private final ZoneId zone;
+
+    public RetentionPolicy(ConfigManager config) {
+        this(config, null);
+    }
+
+    public RetentionPolicy(ConfigManager config, @Nullable String unit) {
+        this(config.getMaxBackups(unit), config.getRetention(unit, "hourly"), config.getRetention(unit, "daily"),
+                config.getRetention(unit, "weekly"), config.getRetention(unit, "monthly"),
+                config.getRetentionMaxBytes(), ZoneId.systemDefault());
+    }
+
+    /**
+     * @param zone where the hours, days, weeks and months start
+     */
+    RetentionPolicy(int maxBackups, int hourly, int daily, int weekly, int monthly, long maxBytes, ZoneId zone) {
+        this.maxBackups = maxBackups;
+        this.hourly = hourly;
+        this.daily = daily;
+        this.weekly = weekly;
+        this.monthly = monthly;
+        this.maxBytes = maxBytes;
+        this.zone = zone;
+    }
+
+    public boolean isTiered() {
+        return hourly > 0 || daily > 0 || weekly > 0 || monthly > 0;
+    }
+
+    /**
+     * @return the most the backups may take on disk, 0 for no limit
+     */
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * @param entries every backup, oldest first
+     * @return the backups that should be kept
+     */
+    public Set<String> selectKept(List<BackupCatalog.Entry> entries) {
+        List<BackupCatalog.Entry> newestFirst = entries.reversed();
+        Set<String> kept = new HashSet<>();
+        if (newestFirst.isEmpty()) return kept;
+
+        if (!isTiered()) {
+            newestFirst.stream().limit(Math.max(1, maxBackups)).forEach(entry -> kept.add(entry.name()));
+            return kept;
+        }
+
+        kept.add(newestFirst.get(0).name());
+        keepPerPeriod(newestFirst, zone, hourly, time -> time.truncatedTo(ChronoUnit.HOURS), kept);
+        keepPerPeriod(newestFirst, zone, daily, ZonedDateTime::toLocalDate, kept);
+        keepPerPeriod(newestFirst, zone, weekly, time -> time.get(IsoFields.WEEK_BASED_YEAR) * 100 + time.get(IsoFields.WEEK_OF_WEEK_BASED_YEAR), kept);
+        keepPerPeriod(newestFirst, zone, monthly, time -> time.getYear() * 100 + time.getMonthValue(), kept);
+        return kept;
+    }
+
+    /**
+     * The backups to delete, oldest first, while all of them take more than
+     * {@code retention.max_size}. The newest backup is never in it. Dedup backups
+     * share their chunks so deleting one may free less than its size says; the
+     * caller asks again with what is left until nothing more is selected.
+     *
+     * @param entries   the backups on disk, oldest first
+     * @param totalSize what they take on disk
+     */
+    public List<String> selectOverSize(List<BackupCatalog.Entry> entries, long totalSize) {
+        List<String> deleted = new ArrayList<>();
+        if (maxBytes <= 0) return deleted;
+
+        for (int i = 0; i < entries.size() - 1 && totalSize > maxBytes; i++) {
+            deleted.add(entries.get(i).name());
+            totalSize -= entries.get(i).size();
+        }
+        return deleted;
+    }
+
+    /**
+     * Keeps the newest backup of each period until {@code count} periods are covered.
+     */
+    private static void keepPerPeriod(List<BackupCatalog.Entry> newestFirst, ZoneId zone, int count,
+                                      Function<ZonedDateTime, Object> period, Set<String> kept) {
+        if (count <= 0) return;
+
+        Set<Object> periods = new HashSet<>();
+        for (BackupCatalog.Entry entry : newestFirst) {
+            ZonedDateTime created = ZonedDateTime.ofInstant(Instant.ofEpochMilli(entry.created()), zone);
+            if (periods.add(period.apply(created))) {
+                kept.add(entry.name());
+                if (periods.size() >= count) return;
+            }
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package me.norax.nyaBackup;
+
+import org.bukkit.Chunk;
+import org.bukkit.World;
+import org.bukkit.entity.Player;
+
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Predicate;
+
+/**
+ * Saves the worlds and players before a backup, spread over as many ticks as it
+ * takes to stay within {@code performance.save_budget} milliseconds per tick.
+ * <p>
+ * Each world save and each player save is one step, and at least one step runs
+ * per tick, so a single big world still costs its whole save in one tick.
+ */
+public class SaveCoordinator {
+    private final NyaBackup plugin;
+    private final long budgetNanos;
+
+    public SaveCoordinator(NyaBackup plugin) {
+        this.plugin = plugin;
+        this.budgetNanos = (long) (plugin.getConfigManager().getSaveBudgetMillis() * 1_000_000);
+    }
+
+    /**
+     * Must be called on the main thread, the first steps run right away.
+     *
+     * @param include the worlds to save, their auto save is turned off first
+     * @return completes once everything is saved, with the region files the saves may have written
+     */
+    public CompletableFuture<Result> save(Predicate<World> include) {
+        CompletableFuture<Result> done = new CompletableFuture<>();
+        Deque<Runnable> steps = new ArrayDeque<>();
+        Map<Path, Long> savedRegions = new HashMap<>();
+
+        for (World world : plugin.getServer().getWorlds()) {
+            if (!include.test(world)) continue;
+            // turned off for all of them first, none may start writing while another is saved
+            world.setAutoSave(false);
+            steps.add(() -> {
+                long savedAt = System.currentTimeMillis();
+                world.save();
+                for (Path region : getRegionFiles(world)) {
+                    savedRegions.put(region, savedAt);
+                }
+            });
+        }
+        for (Player player : plugin.getServer().getOnlinePlayers()) {
+            steps.add(() -> {
+                if (player.isOnline()) player.saveData();
+            });
+        }
+
+        runSteps(steps, new Result(savedRegions, 0, 0), done);
+        return done;
+    }
+
+    private void runSteps(Deque<Runnable> steps, Result spent, CompletableFuture<Result> done) {
+        long start = System.nanoTime();
+        try {
+            do {
+                Runnable step = steps.poll();
+                if (step != null) step.run();
+            } while (!steps.isEmpty() && (budgetNanos <= 0 || System.nanoTime() - start < budgetNanos));
+        } catch (RuntimeException e) {
+            done.completeExceptionally(e);
+            return;
+        }
+
+        Result result = new Result(spent.savedRegions(), spent.mainThreadNanos() + System.nanoTime() - start, spent.ticks() + 1);
+        if (steps.isEmpty()) {
+            done.complete(result);
+        } else {
+            plugin.getServer().getScheduler().runTask(plugin.getBukkitPlugin(), () -> runSteps(steps, result, done));
+        }
+    }
+
+    /**
+     * @return the region, entities and poi files of the loaded chunks, the only ones a save can write
+     */
+    private static List<Path> getRegionFiles(World world) {
+        Path dimensionFolder = world.getWorldFolder().toPath();
+        if (world.getEnvironment() == World.Environment.NETHER) {
+            dimensionFolder = dimensionFolder.resolve("DIM-1");
+        } else if (world.getEnvironment() == World.Environment.THE_END) {
+            dimensionFolder = dimensionFolder.resolve("DIM1");
+        }
+
+        Set<String> regions = new HashSet<>();
+        for (Chunk chunk : world.getLoadedChunks()) {
+            regions.add("r." + (chunk.getX() >> 5) + "." + (chunk.getZ() >> 5) + ".mca");
+        }
+
+        List<Path> files = new ArrayList<>(regions.size() * 3);
+        for (String region : regions) {
+            for (String folder : new String[]{"region", "entities", "poi"}) {
+                files.add(dimensionFolder.resolve(folder).resolve(region));
+            }
+        }
+        return files;
+    }
+
+    /**
+     * @param savedRegions    the region files the saves may have written, with when their world's save started
+     * @param mainThreadNanos how long the saves held the main thread, over all ticks
+     * @param ticks           how many ticks the saves were spread over
+     */
+    public record Result(Map<Path, Long> savedRegions, long mainThreadNanos, int ticks) {
+    }
+}
@@ -1,11 +1,17 @@
 package me.norax.nyaBackup.commands;
 
+import me.norax.nyaBackup.BackupCatalog;
+import me.norax.nyaBackup.BackupManager;
+import me.norax.nyaBackup.BackupUnit;
 import me.norax.nyaBackup.NyaBackup;
+import me.norax.nyaBackup.RestoreSelection;
 import me.norax.nyaBackup.helpers.Logger;
+import org.bukkit.World;
 import org.bukkit.command.Command;
 import org.bukkit.command.CommandExecutor;
 import org.bukkit.command.CommandSender;
 import org.bukkit.command.TabCompleter;
+import org.bukkit.entity.Player;
 import org.jetbrains.annotations.NotNull;
 
 import java.io.File;
@@ -16,16 +22,16 @@ import java.nio.file.FileStore;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Objects;
+import java.util.Set;
+import java.util.UUID;
 
 public class Snapshot implements CommandExecutor, TabCompleter {
     private final NyaBackup plugin;
-    private final File backupFolder;
 
     public Snapshot(NyaBackup plugin) {
         this.plugin = plugin;
-        this.backupFolder = new File(plugin.getDataFolder(), "backups");
     }
 
     @Override
@@ -44,19 +50,26 @@ public class Snapshot implements CommandExecutor, TabCompleter {
 
         switch (args[0].toLowerCase()) {
             case "new":
+                if (args.length >= 2 && args[1].contains(BackupManager.UNIT_SEPARATOR)) {
+                    // it would be taken for the archive of a unit
+                    Logger.error("A backup name can't contain '" + BackupManager.UNIT_SEPARATOR + "'");
+                    return true;
+                }
                 Logger.info("Starting backup...");
-                plugin.getServer().getScheduler().runTaskAsynchronously(plugin, () -> {
-                    try {
-                        if (args.length < 2 || args[1].isBlank()) {
-                            plugin.getBackupManager().createBackup("");
-                        } else {
-                            String backupName = args[1];
-                            plugin.getBackupManager().createBackup(backupName);
-                        }
-                    } catch (Exception e) {
-                        Logger.error("Backup failed: " + e.getMessage());
+                try {
+                    if (args.length < 2 || args[1].isBlank()) {
+                        plugin.getBackupScheduler().submit("", true);
+                    } else if (args.length < 3) {
+                        String backupName = args[1];
+                        plugin.getBackupScheduler().submit(backupName, true);
+                    } else {
+                        // only some worlds (and 'server'), when backups are split per unit
+                        Set<String> units = Set.of(args[2].split(","));
+                        plugin.getBackupScheduler().submit(args[1].equals("-") ? "" : args[1], true, units);
                     }
-                });
+                } catch (Exception e) {
+                    Logger.error("Backup failed: " + e.getMessage());
+                }
                 break;
 
             case "load":
@@ -66,17 +79,79 @@ public class Snapshot implements CommandExecutor, TabCompleter {
                 }
                 String backupFile = args[1];
                 File backup = new File(plugin.getDataFolder(), "backups/" + backupFile);
-                if (!backup.exists()) {
+                if (!backup.exists() && !plugin.getBackupManager().getCatalog().isRemote(backupFile)) {
                     Logger.error("Backup file not found: " + backupFile);
                     return true;
                 }
                 Logger.info("Loading backup...");
+                // an offsite backup may have to be downloaded first, that can't happen on the main thread
+                plugin.getIoExecutor().getJobExecutor().execute(() -> {
+                    try {
+                        plugin.getBackupManager().loadBackup(backup.toPath());
+                        Logger.success("Backup loaded successfully!");
+                    } catch (IOException e) {
+                        Logger.error("Failed to load the backup: " + e.getMessage());
+                    }
+                });
+                break;
+
+            case "restore":
+                if (args.length < 4) {
+                    sendRestoreUsage();
+                    return true;
+                }
+                File restoreFile = new File(plugin.getDataFolder(), "backups/" + args[1]);
+                if (!restoreFile.exists() && !plugin.getBackupManager().getCatalog().isRemote(args[1])) {
+                    Logger.error("Backup file not found: " + args[1]);
+                    return true;
+                }
+
+                RestoreSelection selection;
                 try {
-                    plugin.getBackupManager().loadBackup(backup.toPath());
-                } catch (IOException e) {
-                    Logger.error("Failed to load the backup: " + e.getMessage());
+                    selection = parseSelection(args);
+                } catch (IllegalArgumentException e) {
+                    sendRestoreUsage();
+                    return true;
+                }
+                boolean inUse = selection.isInUse(plugin.getServer());
+
+                if (args[2].equalsIgnoreCase("world") && args.length >= 5 && args[4].equalsIgnoreCase("hot")) {
+                    if (!inUse) {
+                        Logger.error("World " + args[3] + " is not loaded, restore it without 'hot'");
+                        return true;
+                    }
+                    // players are sent to the main world while it is swapped, every other world stays online
+                    Logger.info("Hot restoring " + selection.description() + "...");
+                    plugin.getIoExecutor().getJobExecutor().execute(() -> {
+                        try {
+                            int restored = plugin.getBackupManager().hotRestoreWorld(restoreFile.toPath(), args[3]);
+                            if (restored == 0) {
+                                Logger.error("Nothing in this backup matches " + selection.description());
+                            } else {
+                                Logger.success("Restored " + restored + " files, world " + args[3] + " is back online");
+                            }
+                        } catch (IOException e) {
+                            Logger.error("Failed to restore: " + e.getMessage());
+                        }
+                    });
+                    break;
                 }
-                Logger.success("Backup loaded successfully!");
+
+                Logger.info("Restoring " + selection.description() + "...");
+                plugin.getIoExecutor().getJobExecutor().execute(() -> {
+                    try {
+                        int restored = plugin.getBackupManager().restoreSelection(restoreFile.toPath(), selection, inUse);
+                        if (restored == 0) {
+                            Logger.error("Nothing in this backup matches " + selection.description());
+                        } else if (inUse) {
+                            Logger.success("Restored " + restored + " files, they are in use so they will be put in place on the next restart");
+                        } else {
+                            Logger.success("Restored " + restored + " files");
+                        }
+                    } catch (IOException e) {
+                        Logger.error("Failed to restore: " + e.getMessage());
+                    }
+                });
                 break;
 
             case "info":
@@ -93,13 +168,9 @@ public class Snapshot implements CommandExecutor, TabCompleter {
                 }
 
 
-                long backupSize = 0;
-                try {
-                    backupSize = calculateFolderSize(backupFolder) / (1024 * 1024);
-                } catch (IOException e) {
-                    Logger.error("Failed to calculate backup folder size.");
-                }
-                Logger.info("Backups used storage: " + backupSize + " MB");
+                BackupCatalog catalog = plugin.getBackupManager().getCatalog();
+                long backupSize = catalog.getTotalSize() / (1024 * 1024);
+                Logger.info("Backups used storage: " + backupSize + " MB (" + catalog.getNames().size() + " backups)");
 
                 MemoryMXBean memoryBean = ManagementFactory.getMemoryMXBean();
                 long usedMemory = memoryBean.getHeapMemoryUsage().getUsed() / (1024 * 1024);
@@ -108,23 +179,26 @@ public class Snapshot implements CommandExecutor, TabCompleter {
                 break;
             case "list":
                 Logger.info("==== Available backups ====");
-                if (backupFolder.exists() && backupFolder.isDirectory()) {
-                    File[] files = backupFolder.listFiles();
-                    if (files != null && files.length > 0) {
-                        SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
-                        for (File file : files) {
-                            if (file.isFile()) {
-                                String name = file.getName();
-                                long size = file.length() / (1024 * 1024) ;
-                                String creationDate = sdf.format(file.lastModified());
-                                Logger.info(String.format("Name: %s, Size: %dmb, Created at: %s", name, size, creationDate));
-                            }
-                        }
-                    } else {
-                        Logger.info("It seems like you dont have any backups!.");
+                BackupCatalog backupCatalog = plugin.getBackupManager().getCatalog();
+                List<BackupCatalog.Entry> backups = backupCatalog.getEntries();
+                if (!backups.isEmpty()) {
+                    SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+                    for (BackupCatalog.Entry entry : backups) {
+                        long size = entry.size() / (1024 * 1024);
+                        String creationDate = sdf.format(entry.created());
+                        String where = !backupCatalog.isRemote(entry.name()) ? ""
+                                : backupCatalog.isLocal(entry.name()) ? ", also offsite" : ", offsite only";
+                        Logger.info(String.format("Name: %s, Size: %dmb, Created at: %s, Ratio: %.0f%%%s",
+                                entry.name(), size, creationDate, entry.getRatio() * 100, where));
                     }
+                } else {
+                    Logger.info("It seems like you dont have any backups!.");
                 }
                 break;
+            case "stats":
+                Logger.info("==== Backup statistics ====");
+                plugin.getMetrics().describe().forEach(Logger::info);
+                break;
             default:
                 sendUsage(sender);
                 break;
@@ -135,34 +209,78 @@ public class Snapshot implements CommandExecutor, TabCompleter {
 
     private void sendUsage(CommandSender sender) {
         Logger.error("== Invalid usage ====");
-        Logger.info("/nyabackup new <name>");
+        Logger.info("/nyabackup new <name|-> [world,world,server]");
         Logger.info("/nyabackup delete <name>");
         Logger.info("/nyabackup load <backupfile>");
+        Logger.info("/nyabackup restore <backupfile> <world|region|player> ...");
         Logger.info("/nyabackup list");
         Logger.info("/nyabackup info");
+        Logger.info("/nyabackup stats");
     }
 
-    private long calculateFolderSize(File folder) throws IOException {
-        if (!folder.exists() || !folder.isDirectory()) {
-            return 0;
+    private void sendRestoreUsage() {
+        Logger.error("Usage: /nyabackup restore <backupfile> world <world> [hot]");
+        Logger.info("/nyabackup restore <backupfile> region <world> <x1> <z1> [x2] [z2]");
+        Logger.info("/nyabackup restore <backupfile> player <name|uuid>");
+    }
+
+    private RestoreSelection parseSelection(String[] args) {
+        switch (args[2].toLowerCase()) {
+            case "world":
+                return RestoreSelection.world(args[3]);
+            case "region":
+                if (args.length < 6) {
+                    throw new IllegalArgumentException("Missing region coordinates");
+                }
+                int x1 = Integer.parseInt(args[4]);
+                int z1 = Integer.parseInt(args[5]);
+                int x2 = args.length >= 8 ? Integer.parseInt(args[6]) : x1;
+                int z2 = args.length >= 8 ? Integer.parseInt(args[7]) : z1;
+                return RestoreSelection.regions(args[3], x1, z1, x2, z2);
+            case "player":
+                UUID uuid;
+                try {
+                    uuid = UUID.fromString(args[3]);
+                } catch (IllegalArgumentException notAnUuid) {
+                    uuid = plugin.getServer().getOfflinePlayer(args[3]).getUniqueId();
+                }
+                // player files are always kept in the main world
+                String mainWorld = plugin.getServer().getWorlds().get(0).getName();
+                return RestoreSelection.player(mainWorld, uuid);
+            default:
+                throw new IllegalArgumentException("Unknown restore target: " + args[2]);
         }
-        return Files.walk(folder.toPath())
-                .filter(Files::isRegularFile)
-                .mapToLong(path -> path.toFile().length())
-                .sum();
     }
 
     @Override
     public List<String> onTabComplete(CommandSender sender, @NotNull Command command, @NotNull String alias, String[] args) {
         if (args.length == 1) {
-            return List.of("new", "load", "list", "info");
+            return List.of("new", "load", "restore", "list", "info", "stats");
         }
 
-        if (args.length == 2 && args[0].equalsIgnoreCase("load")) {
-            File backupFolder = new File(plugin.getDataFolder(), "backups");
-            if (backupFolder.exists() && backupFolder.isDirectory()) {
-                return List.of(Objects.requireNonNull(backupFolder.list()));
+        if (args[0].equalsIgnoreCase("restore")) {
+            if (args.length == 3) {
+                return List.of("world", "region", "player");
+            }
+            if (args.length == 4 && args[2].equalsIgnoreCase("player")) {
+                return plugin.getServer().getOnlinePlayers().stream().map(Player::getName).toList();
             }
+            if (args.length == 4) {
+                return plugin.getServer().getWorlds().stream().map(World::getName).toList();
+            }
+            if (args.length == 5 && args[2].equalsIgnoreCase("world")) {
+                return List.of("hot");
+            }
+        }
+
+        if (args.length == 3 && args[0].equalsIgnoreCase("new")) {
+            List<String> units = new ArrayList<>(plugin.getServer().getWorlds().stream().map(World::getName).toList());
+            units.add(BackupUnit.SERVER);
+            return units;
+        }
+
+        if (args.length == 2 && (args[0].equalsIgnoreCase("load") || args[0].equalsIgnoreCase("restore"))) {
+            return plugin.getBackupManager().getCatalog().getNames();
         }
 
         return List.of();
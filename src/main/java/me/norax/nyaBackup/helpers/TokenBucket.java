@@ -0,0 +1,69 @@
+package me.norax.nyaBackup.helpers;
+
+import java.io.InterruptedIOException;
+import java.time.Duration;
+
+/**
+ * Limits how many bytes per second go through it. Callers that take more than
+ * is available go into debt and sleep until it is paid back, so the average
+ * rate stays at the limit no matter how many threads share the bucket.
+ */
+public class TokenBucket {
+    private static final double BURST_SECONDS = 0.25;
+
+    private double rate;
+    private double tokens;
+    private long lastRefill = System.nanoTime();
+    private long consumed;
+
+    /**
+     * @param rate bytes per second, 0 or less means unlimited
+     */
+    public TokenBucket(double rate) {
+        this.rate = rate;
+    }
+
+    public synchronized void setRate(double rate) {
+        refill();
+        this.rate = rate;
+    }
+
+    public synchronized double getRate() {
+        return rate;
+    }
+
+    /**
+     * @return every byte that went through the bucket so far, limited or not
+     */
+    public synchronized long getConsumed() {
+        return consumed;
+    }
+
+    public void acquire(long bytes) throws InterruptedIOException {
+        long sleepNanos;
+        synchronized (this) {
+            consumed += bytes;
+            if (rate <= 0) return;
+
+            refill();
+            tokens -= bytes;
+            if (tokens >= 0) return;
+            sleepNanos = (long) (-tokens / rate * 1_000_000_000L);
+        }
+
+        try {
+            Thread.sleep(Duration.ofNanos(sleepNanos));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Backup interrupted");
+        }
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        if (rate > 0) {
+            tokens = Math.min(rate * BURST_SECONDS, tokens + rate * (now - lastRefill) / 1_000_000_000L);
+        }
+        lastRefill = now;
+    }
+}
@@ -0,0 +1,99 @@
+package me.norax.nyaBackup.methods;
+
+import me.norax.nyaBackup.IoThrottle;
+import me.norax.nyaBackup.Offsite;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Helpers shared by the {@link Compressor} implementations.
+ */
+final class Archives {
+    static final String REFERENCE_NAME = "backup.reference";
+
+    private Archives() {
+    }
+
+    static String relativePath(Path baseDir, Path file) {
+        return baseDir.relativize(file).toString().replace(File.separator, "/");
+    }
+
+    /**
+     * Resolves an entry name against the restore folder, refusing names that would end up outside of it.
+     */
+    static Path resolveEntry(Path targetDir, String name) throws IOException {
+        Path targetPath = targetDir.resolve(name).normalize();
+        if (!targetPath.startsWith(targetDir.normalize())) {
+            throw new IOException("Entry outside of the backup: " + name);
+        }
+        Files.createDirectories(targetPath.getParent());
+        return targetPath;
+    }
+
+    static MessageDigest newDigest() throws IOException {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+    }
+
+    static String hex(MessageDigest digest) {
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    /**
+     * Every byte of the archive passes through the digest on its way to disk, so
+     * the checksum is ready the moment the archive is closed without reading it back.
+     * With offsite storage the same bytes are uploaded on the way.
+     */
+    static OutputStream openDigestStream(Path backupFile, MessageDigest digest, IoThrottle throttle, Offsite offsite) throws IOException {
+        OutputStream out = offsite.tee(backupFile, throttle.write(Files.newOutputStream(backupFile)));
+        return new DigestOutputStream(new BufferedOutputStream(out, 1024 * 1024), digest);
+    }
+
+    static void writeChecksum(Path backupFile, MessageDigest digest) throws IOException {
+        String checksum = hex(digest) + "  " + backupFile.getFileName() + "\n";
+        Files.writeString(Compressor.checksumFile(backupFile), checksum, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Waits for every task, rethrowing the first failure once all of them stopped.
+     */
+    static void awaitAll(List<Future<?>> tasks) throws IOException {
+        IOException failure = null;
+        for (Future<?> task : tasks) {
+            try {
+                task.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Restore interrupted");
+            } catch (ExecutionException e) {
+                if (failure == null) {
+                    failure = e.getCause() instanceof IOException io ? io : new IOException(e.getCause());
+                }
+            }
+        }
+        if (failure != null) throw failure;
+    }
+
+    static ExecutorService newWorkerPool(int threads, String name) {
+        return Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+}
@@ -1,110 +1,342 @@
 package me.norax.nyaBackup.methods;
 
+import me.norax.nyaBackup.IoThrottle;
 import me.norax.nyaBackup.NyaBackup;
 import me.norax.nyaBackup.ConfigManager;
-import org.bukkit.scheduler.BukkitRunnable;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.DigestInputStream;
 import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.util.*;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
 
+/**
+ * Keeps a copy of files that rarely change (the server jar, logs, eula.txt) in
+ * {@code cached/}, so backups don't have to store them every time.
+ * <p>
+ * {@code optimizations.cached} accepts files, folders and glob patterns, all
+ * expanded in a single walk that only enters the folders a pattern can match,
+ * never deeper than the pattern reaches without {@code **}, and never into a
+ * world unless a pattern starts inside it.
+ * Copies are stored by content hash under {@code cached/objects/}, so identical
+ * files are only stored once even under different paths (or for several servers
+ * sharing {@code optimizations.cache_folder}).
+ * <p>
+ * The size, modification time and hashes of every cached path are kept in
+ * {@code cached/index.txt}: files whose size and modification time did not
+ * change are skipped without being read, the others are hashed in a streaming
+ * pass and only copied again when the hash differs. All of it runs off the main
+ * thread and goes through the {@link IoThrottle} like a backup.
+ */
 public class Cacher {
+    private static final String INDEX_HEADER = "nyabackup-cache:2";
+    private static final String GLOB_CHARS = "*?[{";
+
     private final NyaBackup plugin;
+    private final IoThrottle throttle;
     private final Path serverDir;
-    private final Path cachePath;
-    private final Map<String, String> cachedFileHashes;
+    private final Path dataDir;
+    private final Path objectsDir;
+    private final Path indexFile;
+    private final boolean sharedObjects;
+    private final String hashAlgorithm;
+    private final Map<String, CachedFile> cachedFiles;
 
     public Cacher(NyaBackup plugin) {
         this.plugin = plugin;
+        this.throttle = plugin.getIoThrottle();
         this.serverDir = plugin.getServer().getWorldContainer().toPath();
-        this.cachePath = plugin.getDataFolder().toPath().resolve("cached");
-        this.cachedFileHashes = new HashMap<>();
-        initializeCache();
+        this.dataDir = plugin.getDataFolder().toPath().toAbsolutePath().normalize();
+        Path cachePath = dataDir.resolve("cached");
+        String sharedFolder = plugin.getConfigManager().getCacheFolder();
+        this.sharedObjects = sharedFolder != null && !sharedFolder.isBlank();
+        this.objectsDir = (sharedObjects ? serverDir.resolve(sharedFolder) : cachePath).resolve("objects");
+        this.indexFile = cachePath.resolve("index.txt");
+        this.hashAlgorithm = plugin.getConfigManager().getCacheHashAlgorithm();
+        this.cachedFiles = new HashMap<>();
+        loadIndex();
+        scheduleCacheCheck();
     }
 
-    private void initializeCache() {
+    private void loadIndex() {
+        if (!Files.exists(indexFile)) return;
+
         try {
-            Files.createDirectories(cachePath);
+            List<String> lines = Files.readAllLines(indexFile, StandardCharsets.UTF_8);
+            if (lines.isEmpty() || !lines.get(0).equals(INDEX_HEADER)) return;
 
-            List<String> filesToCache = ConfigManager.getCaches();
-            filesToCache.add(ConfigManager.getServerJar());
+            for (String line : lines.subList(1, lines.size())) {
+                String[] parts = line.split(":", 5);
+                cachedFiles.put(parts[4], new CachedFile(Long.parseLong(parts[0]), Long.parseLong(parts[1]), parts[2], parts[3]));
+            }
+        } catch (IOException | RuntimeException e) {
+            plugin.getLogger().warning("Failed to read the cache index, cached files will be hashed again: " + e.getMessage());
+            cachedFiles.clear();
+        }
+    }
 
-            for (String filename : filesToCache) {
-                Path sourceFile = serverDir.resolve(filename);
-                if (Files.exists(sourceFile)) {
-                    cacheFile(sourceFile);
-                }
+    private void saveIndex() throws IOException {
+        StringBuilder index = new StringBuilder(INDEX_HEADER).append('\n');
+        cachedFiles.forEach((relativePath, cached) -> index.append(cached.size()).append(':').append(cached.modified())
+                .append(':').append(cached.hash()).append(':').append(cached.object()).append(':')
+                .append(relativePath).append('\n'));
+
+        Files.createDirectories(indexFile.getParent());
+        Path tempFile = indexFile.resolveSibling("index.txt.tmp");
+        Files.writeString(tempFile, index, StandardCharsets.UTF_8);
+        Files.move(tempFile, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Caches every file matched by {@code optimizations.cached} and the server jar,
+     * and forgets the paths that are no longer there.
+     */
+    public synchronized void updateCache() throws IOException {
+        List<String> patterns = new ArrayList<>(ConfigManager.getCaches());
+        patterns.add(ConfigManager.getServerJar());
+
+        Set<String> seen = new HashSet<>();
+        for (Path file : findFiles(patterns)) {
+            try {
+                seen.add(cacheFile(file));
+            } catch (NoSuchFileException e) {
+                // deleted since the walk
             }
-        } catch (IOException | NoSuchAlgorithmException e) {
-            plugin.getLogger().severe("Failed to initialize cache: " + e.getMessage());
         }
+
+        if (cachedFiles.keySet().retainAll(seen)) {
+            removeUnusedObjects();
+        }
+        saveIndex();
     }
 
-    public void cacheFile(Path sourceFile) throws IOException, NoSuchAlgorithmException {
-        String filename = sourceFile.getFileName().toString();
-        Path cachedFile = cachePath.resolve(filename);
+    private String cacheFile(Path sourceFile) throws IOException {
+        String relativePath = Archives.relativePath(serverDir, sourceFile);
+
+        BasicFileAttributes attributes = Files.readAttributes(sourceFile, BasicFileAttributes.class);
+        long size = attributes.size();
+        long modified = attributes.lastModifiedTime().toMillis();
+
+        CachedFile cached = cachedFiles.get(relativePath);
+        boolean present = cached != null && Files.exists(objectPath(cached.object()));
+        if (present && cached.size() == size && cached.modified() == modified
+                && cached.hash().startsWith(hashAlgorithm + "-")) {
+            return relativePath;
+        }
 
         String fileHash = calculateFileHash(sourceFile);
+        String object;
+        if (present && cached.hash().equals(fileHash)) {
+            object = cached.object();
+        } else if (fileHash.startsWith("sha256-") && Files.exists(objectPath(fileHash.substring(7)))) {
+            // the same content is already stored for another path
+            object = fileHash.substring(7);
+        } else {
+            object = storeObject(sourceFile);
+        }
 
-        if (!cachedFileHashes.containsKey(filename) ||
-                !cachedFileHashes.get(filename).equals(fileHash)) {
+        cachedFiles.put(relativePath, new CachedFile(size, modified, fileHash, object));
+        return relativePath;
+    }
 
-            Files.copy(sourceFile, cachedFile, StandardCopyOption.REPLACE_EXISTING);
+    /**
+     * Copies the file into the object store while hashing it, objects are always
+     * named by SHA-256 even when changes are detected with CRC32C.
+     */
+    private String storeObject(Path sourceFile) throws IOException {
+        Files.createDirectories(objectsDir);
+        Path tempFile = Files.createTempFile(objectsDir, "object", ".tmp");
 
-            cachedFileHashes.put(filename, fileHash);
+        MessageDigest digest = Archives.newDigest();
+        try (InputStream in = new DigestInputStream(throttle.read(Files.newInputStream(sourceFile)), digest);
+             OutputStream out = throttle.write(Files.newOutputStream(tempFile))) {
+            in.transferTo(out);
+        } catch (IOException e) {
+            Files.deleteIfExists(tempFile);
+            throw e;
+        }
 
-            Path hashFile = cachePath.resolve(filename + ".hash");
-            Files.writeString(hashFile, fileHash);
+        String object = Archives.hex(digest);
+        Path objectFile = objectPath(object);
+        Files.createDirectories(objectFile.getParent());
+        try {
+            Files.move(tempFile, objectFile, StandardCopyOption.ATOMIC_MOVE);
+        } catch (FileAlreadyExistsException e) {
+            Files.deleteIfExists(tempFile);
         }
+        return object;
     }
 
-    public void scheduleCacheCheck() {
-        long interval = 20L * 60 * 60;
+    private Path objectPath(String object) {
+        return objectsDir.resolve(object.substring(0, 2)).resolve(object);
+    }
 
-        BukkitRunnable cacheCheckTask = new BukkitRunnable() {
-            @Override
-            public void run() {
-                checkAndUpdateCache();
-            }
-        };
+    private void removeUnusedObjects() throws IOException {
+        // other servers may still use the objects in a shared folder
+        if (sharedObjects || !Files.isDirectory(objectsDir)) return;
 
-        cacheCheckTask.runTaskTimer(plugin, interval, interval);
+        Set<String> used = new HashSet<>();
+        cachedFiles.values().forEach(cached -> used.add(cached.object()));
+        try (Stream<Path> objects = Files.walk(objectsDir)) {
+            for (Path object : objects.filter(Files::isRegularFile).toList()) {
+                if (!used.contains(object.getFileName().toString())) {
+                    Files.deleteIfExists(object);
+                }
+            }
+        }
     }
 
-    private void checkAndUpdateCache() {
-        List<String> filesToCache = ConfigManager.getCaches();
-        filesToCache.add(ConfigManager.getServerJar());
+    /**
+     * Expands plain paths, folders and glob patterns (relative to the server folder)
+     * into the files they match, walking each folder at most once.
+     */
+    private List<Path> findFiles(List<String> patterns) throws IOException {
+        List<PathMatcher> matchers = new ArrayList<>();
+        // the folder to walk, with how deep below the server folder its patterns reach
+        TreeMap<String, Integer> roots = new TreeMap<>();
+        Set<Path> files = new LinkedHashSet<>();
 
-        for (String filename : filesToCache) {
-            try {
-                Path sourceFile = serverDir.resolve(filename);
-                if (Files.exists(sourceFile)) {
-                    cacheFile(sourceFile);
+        for (String pattern : patterns) {
+            pattern = pattern.replace('\\', '/');
+            if (pattern.chars().noneMatch(c -> GLOB_CHARS.indexOf(c) >= 0)) {
+                Path path = serverDir.resolve(pattern);
+                if (Files.isRegularFile(path)) {
+                    files.add(path);
+                    continue;
                 }
-            } catch (IOException | NoSuchAlgorithmException e) {
-                plugin.getLogger().severe("Failed to update cache for " + filename + ": " + e.getMessage());
+                if (!Files.isDirectory(path)) continue;
+                pattern = pattern.replaceAll("/+$", "") + "/**";
             }
+
+            matchers.add(FileSystems.getDefault().getPathMatcher("glob:" + pattern));
+            // only the folder before the first wildcard needs to be walked
+            int wildcard = 0;
+            while (GLOB_CHARS.indexOf(pattern.charAt(wildcard)) < 0) wildcard++;
+            // "*" never matches across a "/", only "**" can reach any depth
+            int depth = pattern.contains("**") ? Integer.MAX_VALUE : pattern.split("/").length;
+            roots.merge(pattern.substring(0, pattern.lastIndexOf('/', wildcard) + 1), depth, Math::max);
+        }
+
+        // folders below another root are walked as part of it
+        Map<String, Integer> walks = new LinkedHashMap<>();
+        String previous = null;
+        for (Map.Entry<String, Integer> root : roots.entrySet()) {
+            if (previous != null && root.getKey().startsWith(previous)) {
+                walks.merge(previous, root.getValue(), Math::max);
+                continue;
+            }
+            previous = root.getKey();
+            walks.put(previous, root.getValue());
+        }
+
+        for (Map.Entry<String, Integer> walk : walks.entrySet()) {
+            Path start = serverDir.resolve(walk.getKey());
+            if (!Files.isDirectory(start)) continue;
+            int rootDepth = walk.getKey().isEmpty() ? 0 : walk.getKey().split("/").length;
+            int maxDepth = walk.getValue() == Integer.MAX_VALUE ? Integer.MAX_VALUE : walk.getValue() - rootDepth;
+
+            Files.walkFileTree(start, EnumSet.noneOf(FileVisitOption.class), maxDepth, new SimpleFileVisitor<>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attributes) {
+                    // never cache the cache itself or the backups
+                    if (dir.toAbsolutePath().normalize().equals(dataDir)) return FileVisitResult.SKIP_SUBTREE;
+                    // worlds change all the time and hold most of the files, a pattern has to start inside one
+                    if (!dir.equals(start) && Files.exists(dir.resolve("level.dat"))) {
+                        String world = Archives.relativePath(serverDir, dir) + "/";
+                        if (roots.keySet().stream().noneMatch(root -> root.startsWith(world))) return FileVisitResult.SKIP_SUBTREE;
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                    Path relativePath = Path.of(Archives.relativePath(serverDir, file));
+                    if (attributes.isRegularFile() && matchers.stream().anyMatch(matcher -> matcher.matches(relativePath))) {
+                        files.add(file);
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException e) {
+                    return FileVisitResult.CONTINUE;
+                }
+            });
         }
+        return new ArrayList<>(files);
+    }
+
+    /**
+     * Checks the cached files right away and then every hour, on the plugin's job threads.
+     */
+    public void scheduleCacheCheck() {
+        long interval = 20L * 60 * 60;
+
+        plugin.getServer().getScheduler().runTaskTimer(plugin.getBukkitPlugin(), () -> plugin.getIoExecutor().getJobExecutor().execute(() -> {
+            try {
+                updateCache();
+            } catch (IOException e) {
+                plugin.getLogger().severe("Failed to update the cache: " + e.getMessage());
+            }
+        }), 0L, interval);
     }
 
-    public void restoreCachedFile(String filename) throws IOException {
-        Path cachedFile = cachePath.resolve(filename);
-        Path targetFile = serverDir.resolve(filename);
+    /**
+     * Restores a cached file to its path relative to the server folder.
+     *
+     * @throws IOException if that path is not cached
+     */
+    public synchronized void restoreCachedFile(String relativePath) throws IOException {
+        CachedFile cached = cachedFiles.get(relativePath.replace('\\', '/'));
+        if (cached == null || !Files.exists(objectPath(cached.object()))) {
+            throw new IOException("Cached file not found: " + relativePath);
+        }
 
-        if (Files.exists(cachedFile)) {
-            Files.copy(cachedFile, targetFile, StandardCopyOption.REPLACE_EXISTING);
-        } else {
-            throw new IOException("Cached file not found: " + filename);
+        Path targetFile = serverDir.resolve(relativePath);
+        Files.createDirectories(targetFile.getParent());
+        try (InputStream in = throttle.read(Files.newInputStream(objectPath(cached.object())));
+             OutputStream out = throttle.write(Files.newOutputStream(targetFile))) {
+            in.transferTo(out);
         }
     }
 
-    private String calculateFileHash(Path file) throws IOException, NoSuchAlgorithmException {
-        MessageDigest digest = MessageDigest.getInstance("SHA-256");
-        byte[] fileBytes = Files.readAllBytes(file);
-        byte[] hashBytes = digest.digest(fileBytes);
-        return Base64.getEncoder().encodeToString(hashBytes);
+    /**
+     * Hashes the file in 1 MB blocks, with SHA-256 or the much faster (but not
+     * collision resistant) CRC32C, picked by {@code optimizations.cache_hash}.
+     * The algorithm is part of the result so switching it rehashes everything.
+     */
+    String calculateFileHash(Path file) throws IOException {
+        boolean crc = hashAlgorithm.equals("crc32c");
+        MessageDigest digest = crc ? null : Archives.newDigest();
+        CRC32C crc32c = crc ? new CRC32C() : null;
+
+        ByteBuffer buffer = ByteBuffer.allocateDirect(1024 * 1024);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            int read;
+            while ((read = channel.read(buffer)) >= 0) {
+                throttle.acquireRead(read);
+                buffer.flip();
+                if (crc) {
+                    crc32c.update(buffer);
+                } else {
+                    digest.update(buffer);
+                }
+                buffer.clear();
+            }
+        }
+
+        String hash = crc ? Long.toHexString(crc32c.getValue()) : Archives.hex(digest);
+        return hashAlgorithm + "-" + hash;
     }
 
-}
\ No newline at end of file
+    private record CachedFile(long size, long modified, String hash, String object) {
+    }
+}
@@ -0,0 +1,497 @@
+package me.norax.nyaBackup.methods;
+
+import me.norax.nyaBackup.ConfigManager;
+import me.norax.nyaBackup.BackupMetrics;
+import me.norax.nyaBackup.IoExecutor;
+import me.norax.nyaBackup.IoThrottle;
+import me.norax.nyaBackup.NyaBackup;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import static net.lingala.zip4j.util.Zip4jUtil.createDirectoryIfNotExists;
+
+/**
+ * Content-addressed storage for deduplicated backups.
+ * <p>
+ * Every file is split into fixed-size chunks which are stored once under
+ * {@code chunks/<xx>/<sha256>}, and each backup is just a small manifest
+ * listing the chunks that make up each file. Unchanged data between backups
+ * is therefore only written the first time it is seen.
+ * <p>
+ * In incremental mode region files are stored per Minecraft chunk instead: an
+ * index object (region header + a checksum per chunk) and a list of packs, the
+ * first one holding every chunk and each following one only the chunks that
+ * changed since the parent backup.
+ */
+public class ChunkStore implements Compressor {
+    public static final String MANIFEST_EXTENSION = ".nya";
+    private static final String MANIFEST_HEADER = "nyabackup-manifest:1";
+
+    private static final byte RAW = 0;
+    private static final byte DEFLATED = 1;
+
+    private static final int REGION_INDEX_SIZE = RegionFile.HEADER_SIZE + RegionFile.SLOTS * 4;
+
+    private final Path chunksDir;
+    private final int chunkSize;
+    private final boolean incremental;
+    private final int maxDeltaChain;
+    private final boolean trustRegionTimestamps;
+    private final IoThrottle throttle;
+    private final BackupMetrics metrics;
+    private final CompressionProbe probe;
+    private final IoExecutor ioExecutor;
+
+    // backups share chunks with each other, so garbage collection must never run while one is being written
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    public ChunkStore(NyaBackup plugin) {
+        ConfigManager config = plugin.getConfigManager();
+        this.chunksDir = plugin.getDataFolder().toPath().resolve("chunks");
+        this.chunkSize = config.getDedupChunkSize();
+        this.incremental = config.isIncrementalEnabled();
+        this.maxDeltaChain = config.getMaxDeltaChain();
+        this.trustRegionTimestamps = config.isTrustRegionTimestamps();
+        this.throttle = plugin.getIoThrottle();
+        this.metrics = plugin.getMetrics();
+        this.probe = new CompressionProbe(plugin);
+        this.ioExecutor = plugin.getIoExecutor();
+    }
+
+    public Path getChunksDir() {
+        return chunksDir;
+    }
+
+    @Override
+    public String getName() {
+        return "dedup";
+    }
+
+    @Override
+    public String getExtension() {
+        return MANIFEST_EXTENSION;
+    }
+
+    @Override
+    public long createBackup(Path manifestFile, Path sourceDir, List<Path> files, String filename) throws IOException {
+        return createBackup(manifestFile, sourceDir, files, filename, incremental ? findLatestManifest(manifestFile.getParent()) : null);
+    }
+
+    public long createBackup(Path manifestFile, Path sourceDir, List<Path> files, String filename, @Nullable Path parentManifest) throws IOException {
+        long totalSize = 0;
+        lock.readLock().lock();
+        try (ChunkIO io = new ChunkIO()) {
+            Files.createDirectories(chunksDir);
+
+            Map<String, ManifestEntry> parentEntries = new HashMap<>();
+            if (incremental && parentManifest != null && Files.exists(parentManifest)) {
+                for (ManifestEntry entry : readManifest(parentManifest)) {
+                    parentEntries.put(entry.path(), entry);
+                }
+            }
+
+            Path tempManifest = manifestFile.resolveSibling(manifestFile.getFileName() + ".tmp");
+            // only new or changed small files are read ahead, the others are never opened
+            try (BufferedWriter writer = Files.newBufferedWriter(tempManifest, StandardCharsets.UTF_8);
+                 IoExecutor.Prefetch prefetch = ioExecutor.prefetch(files, (file, attributes) -> {
+                     ManifestEntry parent = parentEntries.get(Archives.relativePath(sourceDir, file));
+                     long modified = attributes.lastModifiedTime().toMillis();
+                     return (parent == null || parent.size() != attributes.size() || parent.modified() != modified)
+                             && !(incremental && RegionFile.isRegionFile(file, attributes.size()));
+                 })) {
+                writer.write(MANIFEST_HEADER + "\n");
+                writer.write("original:" + filename + "\n");
+                writer.write("created:" + System.currentTimeMillis() + "\n");
+                if (!parentEntries.isEmpty()) {
+                    writer.write("parent:" + parentManifest.getFileName() + "\n");
+                }
+
+                while (prefetch.hasNext()) {
+                    IoExecutor.FileData data = prefetch.next();
+                    // the server deleted the file after it was listed, nothing to back up
+                    if (data.isMissing()) continue;
+                    Path file = data.file();
+                    String relativePath = Archives.relativePath(sourceDir, file);
+                    ManifestEntry parent = parentEntries.get(relativePath);
+
+                    ManifestEntry entry;
+                    long start = System.nanoTime();
+                    try {
+                        long size = data.size();
+                        long modified = data.modified();
+
+                        if (parent != null && parent.size() == size && parent.modified() == modified) {
+                            entry = parent;
+                        } else if (incremental && RegionFile.isRegionFile(file, size)) {
+                            entry = storeRegion(file, relativePath, size, modified, parent, io);
+                        } else {
+                            entry = storeFile(data, relativePath, io);
+                        }
+                    } catch (NoSuchFileException e) {
+                        // the server deleted the file after it was listed, nothing to back up
+                        continue;
+                    }
+
+                    writer.write(entry.toLine() + "\n");
+                    totalSize += entry.size();
+                    if (entry != parent) {
+                        metrics.recordEntry(relativePath, System.nanoTime() - start, entry.size());
+                    }
+                }
+            }
+
+            Files.move(tempManifest, manifestFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            lock.readLock().unlock();
+        }
+        return totalSize;
+    }
+
+    @Override
+    public void extractBackup(Path manifestFile, Path targetDir, Predicate<String> filter, RestoreLimits limits,
+                              RestoreProgress progress) throws IOException {
+        List<ManifestEntry> entries = readManifest(manifestFile).stream()
+                .filter(entry -> filter.test(entry.path()))
+                .toList();
+        progress.setTotal(entries.stream().mapToLong(ManifestEntry::size).sum());
+
+        // every worker takes every n-th file, so each one only needs its own buffers
+        int threads = Math.min(limits.threads(), Math.max(1, entries.size()));
+        ExecutorService workers = Archives.newWorkerPool(threads, "NyaBackup-restore");
+
+        lock.readLock().lock();
+        try {
+            List<Future<?>> tasks = new ArrayList<>(threads);
+            for (int worker = 0; worker < threads; worker++) {
+                int first = worker;
+                tasks.add(workers.submit(() -> {
+                    try (ChunkIO io = new ChunkIO()) {
+                        for (int i = first; i < entries.size(); i += threads) {
+                            limits.acquireWrite(entries.get(i).size());
+                            extractEntry(entries.get(i), targetDir, io);
+                            progress.add(entries.get(i).size());
+                        }
+                    }
+                    return null;
+                }));
+            }
+            Archives.awaitAll(tasks);
+        } finally {
+            lock.readLock().unlock();
+            workers.shutdownNow();
+        }
+    }
+
+    private void extractEntry(ManifestEntry entry, Path targetDir, ChunkIO io) throws IOException {
+        Path targetPath = Archives.resolveEntry(targetDir, entry.path());
+
+        if (entry.regionIndex() != null) {
+            extractRegion(entry, targetPath, io);
+            return;
+        }
+
+        try (OutputStream out = Files.newOutputStream(targetPath)) {
+            for (String hash : entry.chunks()) {
+                out.write(io.read(hash));
+            }
+        }
+    }
+
+    /**
+     * Deletes every chunk that is no longer referenced by one of the given manifests.
+     */
+    public void collectGarbage(List<Path> manifests) throws IOException {
+        if (!Files.isDirectory(chunksDir)) return;
+
+        lock.writeLock().lock();
+        try {
+            Set<String> referenced = new HashSet<>();
+            for (Path manifest : manifests) {
+                for (ManifestEntry entry : readManifest(manifest)) {
+                    referenced.addAll(entry.chunks());
+                    if (entry.regionIndex() != null) {
+                        referenced.add(entry.regionIndex());
+                    }
+                }
+            }
+
+            try (Stream<Path> chunks = Files.walk(chunksDir)) {
+                for (Path chunk : chunks.filter(Files::isRegularFile).toList()) {
+                    if (!referenced.contains(chunk.getFileName().toString())) {
+                        Files.deleteIfExists(chunk);
+                    }
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private static @Nullable Path findLatestManifest(Path backupDir) throws IOException {
+        try (Stream<Path> backups = Files.list(backupDir)) {
+            return backups.filter(path -> path.toString().endsWith(MANIFEST_EXTENSION))
+                    .max(Comparator.comparingLong(path -> path.toFile().lastModified()))
+                    .orElse(null);
+        }
+    }
+
+    public List<ManifestEntry> readManifest(Path manifestFile) throws IOException {
+        List<ManifestEntry> entries = new ArrayList<>();
+        try (BufferedReader reader = Files.newBufferedReader(manifestFile, StandardCharsets.UTF_8)) {
+            String line = reader.readLine();
+            if (!MANIFEST_HEADER.equals(line)) {
+                throw new IOException("Not a NyaBackup manifest: " + manifestFile);
+            }
+
+            while ((line = reader.readLine()) != null) {
+                // the path goes last so it may contain ':' itself
+                if (line.startsWith("file:")) {
+                    String[] parts = line.split(":", 5);
+                    entries.add(new ManifestEntry(parts[4], Long.parseLong(parts[1]), Long.parseLong(parts[2]),
+                            splitHashes(parts[3]), null));
+                } else if (line.startsWith("region:")) {
+                    String[] parts = line.split(":", 6);
+                    entries.add(new ManifestEntry(parts[5], Long.parseLong(parts[1]), Long.parseLong(parts[2]),
+                            splitHashes(parts[4]), parts[3]));
+                }
+            }
+        }
+        return entries;
+    }
+
+    private ManifestEntry storeFile(IoExecutor.FileData data, String relativePath, ChunkIO io) throws IOException {
+        List<String> hashes = new ArrayList<>();
+        long size = 0;
+        boolean compressible = !probe.isCompressedType(relativePath);
+
+        try (InputStream in = data.data() != null ? new ByteArrayInputStream(data.data())
+                : throttle.read(Files.newInputStream(data.file()))) {
+            int read;
+            while ((read = in.readNBytes(io.buffer, 0, io.buffer.length)) > 0) {
+                hashes.add(io.store(io.buffer, read, compressible));
+                size += read;
+            }
+        }
+        return new ManifestEntry(relativePath, size, data.modified(), hashes, null);
+    }
+
+    private ManifestEntry storeRegion(Path file, String relativePath, long size, long modified,
+                                      @Nullable ManifestEntry parent, ChunkIO io) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer index = ByteBuffer.allocate(REGION_INDEX_SIZE);
+            RegionFile.readFully(channel, index.limit(RegionFile.HEADER_SIZE), 0);
+            index.clear();
+
+            // start over from a full base pack once the chain of deltas gets too long
+            ByteBuffer parentIndex = null;
+            List<String> packs = new ArrayList<>();
+            if (parent != null && parent.regionIndex() != null && parent.chunks().size() < maxDeltaChain) {
+                parentIndex = ByteBuffer.wrap(io.read(parent.regionIndex()));
+                packs.addAll(parent.chunks());
+            }
+
+            ByteArrayOutputStream pack = new ByteArrayOutputStream();
+            DataOutputStream packOut = new DataOutputStream(pack);
+            CRC32 crc = new CRC32();
+
+            for (int slot = 0; slot < RegionFile.SLOTS; slot++) {
+                int location = RegionFile.location(index, slot);
+                if (location == 0) continue;
+
+                int checksumOffset = RegionFile.HEADER_SIZE + slot * 4;
+                boolean unchanged = parentIndex != null
+                        && RegionFile.location(parentIndex, slot) == location
+                        && RegionFile.timestamp(parentIndex, slot) == RegionFile.timestamp(index, slot);
+
+                if (unchanged && trustRegionTimestamps) {
+                    index.putInt(checksumOffset, parentIndex.getInt(checksumOffset));
+                    continue;
+                }
+
+                byte[] sectors = RegionFile.readSectors(channel, location, size);
+                throttle.acquireRead(sectors.length);
+                crc.reset();
+                crc.update(sectors);
+                int checksum = (int) crc.getValue();
+                index.putInt(checksumOffset, checksum);
+
+                if (unchanged && parentIndex.getInt(checksumOffset) == checksum) continue;
+
+                packOut.writeShort(slot);
+                packOut.writeInt(sectors.length);
+                packOut.write(sectors);
+            }
+
+            if (pack.size() > 0) {
+                packs.add(io.store(pack.toByteArray(), pack.size(), true));
+            }
+            String indexHash = io.store(index.array(), REGION_INDEX_SIZE, true);
+            return new ManifestEntry(relativePath, size, modified, packs, indexHash);
+        }
+    }
+
+    /**
+     * Rebuilds a region file from its header and packs. Packs are applied newest
+     * first so every chunk comes from the last backup that stored it; sectors not
+     * used by any chunk are left zeroed.
+     */
+    private void extractRegion(ManifestEntry entry, Path targetPath, ChunkIO io) throws IOException {
+        ByteBuffer index = ByteBuffer.wrap(io.read(entry.regionIndex()));
+        boolean[] restored = new boolean[RegionFile.SLOTS];
+
+        try (FileChannel out = FileChannel.open(targetPath, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            RegionFile.writeFully(out, ByteBuffer.wrap(index.array(), 0, RegionFile.HEADER_SIZE), 0);
+
+            for (int i = entry.chunks().size() - 1; i >= 0; i--) {
+                ByteBuffer pack = ByteBuffer.wrap(io.read(entry.chunks().get(i)));
+                while (pack.hasRemaining()) {
+                    int slot = pack.getShort();
+                    int length = pack.getInt();
+                    int location = RegionFile.location(index, slot);
+
+                    if (!restored[slot] && location != 0) {
+                        RegionFile.writeFully(out, pack.slice(pack.position(), length), RegionFile.sectorOffset(location));
+                        restored[slot] = true;
+                    }
+                    pack.position(pack.position() + length);
+                }
+            }
+
+            if (out.size() < entry.size()) {
+                RegionFile.writeFully(out, ByteBuffer.allocate(1), entry.size() - 1);
+            }
+        }
+    }
+
+    private static List<String> splitHashes(String hashes) {
+        return hashes.isEmpty() ? List.of() : List.of(hashes.split(","));
+    }
+
+    private Path chunkPath(String hash) {
+        return chunksDir.resolve(hash.substring(0, 2)).resolve(hash);
+    }
+
+    /**
+     * Per-backup hashing and (de)compression state, so a single backup reuses its buffers.
+     */
+    private class ChunkIO implements Closeable {
+        private final MessageDigest digest;
+        private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+        private final Inflater inflater = new Inflater();
+        private final byte[] buffer = new byte[chunkSize];
+        private final byte[] scratch = new byte[8192];
+
+        ChunkIO() throws IOException {
+            try {
+                this.digest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IOException(e);
+            }
+        }
+
+        /**
+         * @param compressible false to skip trying to deflate data that is already compressed
+         */
+        String store(byte[] data, int length, boolean compressible) throws IOException {
+            digest.reset();
+            digest.update(data, 0, length);
+            String hash = HexFormat.of().formatHex(digest.digest());
+
+            Path chunkFile = chunkPath(hash);
+            if (Files.exists(chunkFile)) {
+                return hash;
+            }
+
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream(length / 2);
+            deflater.reset();
+            if (compressible && probe.isWorthCompressing(data, length)) {
+                deflater.setInput(data, 0, length);
+                deflater.finish();
+                while (!deflater.finished() && compressed.size() < length) {
+                    int written = deflater.deflate(scratch);
+                    compressed.write(scratch, 0, written);
+                }
+            }
+
+            createDirectoryIfNotExists(chunkFile.getParent().toFile());
+            Path tempFile = Files.createTempFile(chunkFile.getParent(), hash, ".tmp");
+            try (OutputStream out = throttle.write(Files.newOutputStream(tempFile))) {
+                if (deflater.finished() && compressed.size() < length) {
+                    out.write(DEFLATED);
+                    compressed.writeTo(out);
+                } else {
+                    out.write(RAW);
+                    out.write(data, 0, length);
+                }
+            }
+
+            try {
+                Files.move(tempFile, chunkFile, StandardCopyOption.ATOMIC_MOVE);
+            } catch (FileAlreadyExistsException e) {
+                Files.deleteIfExists(tempFile);
+            }
+            return hash;
+        }
+
+        byte[] read(String hash) throws IOException {
+            byte[] stored = Files.readAllBytes(chunkPath(hash));
+            if (stored.length == 0) {
+                throw new IOException("Corrupted chunk: " + hash);
+            }
+
+            if (stored[0] == RAW) {
+                return Arrays.copyOfRange(stored, 1, stored.length);
+            }
+
+            inflater.reset();
+            inflater.setInput(stored, 1, stored.length - 1);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(stored.length * 2);
+            try {
+                while (!inflater.finished()) {
+                    int read = inflater.inflate(scratch);
+                    if (read == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                        throw new IOException("Truncated chunk: " + hash);
+                    }
+                    out.write(scratch, 0, read);
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("Corrupted chunk: " + hash, e);
+            }
+            return out.toByteArray();
+        }
+
+        @Override
+        public void close() {
+            deflater.end();
+            inflater.end();
+        }
+    }
+
+    public record ManifestEntry(String path, long size, long modified, List<String> chunks, @Nullable String regionIndex) {
+        String toLine() {
+            String hashes = String.join(",", chunks);
+            return regionIndex == null ?
+                    "file:" + size + ":" + modified + ":" + hashes + ":" + path :
+                    "region:" + size + ":" + modified + ":" + regionIndex + ":" + hashes + ":" + path;
+        }
+    }
+}
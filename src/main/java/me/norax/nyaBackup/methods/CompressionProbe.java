@@ -0,0 +1,89 @@
+package me.norax.nyaBackup.methods;
+
+import me.norax.nyaBackup.NyaBackup;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.Deflater;
+
+/**
+ * Tells which files are worth compressing. Files with an extension from
+ * {@code store_extensions} are already compressed, other files bigger than the
+ * sample are tried first: 64 KB from their middle (headers compress better than
+ * the data behind them) are deflated at the fastest level, and the file is
+ * stored as it is when that saved less than 10%.
+ */
+public class CompressionProbe {
+    private static final int SAMPLE_SIZE = 64 * 1024;
+    private static final double MIN_SAVING = 0.10;
+
+    private final boolean probe;
+    private final List<String> storedExtensions;
+
+    public CompressionProbe(NyaBackup plugin) {
+        this.probe = plugin.getConfigManager().isCompressionProbe();
+        this.storedExtensions = plugin.getConfigManager().getStoreExtensions().stream()
+                .map(extension -> extension.toLowerCase(Locale.ROOT))
+                .toList();
+    }
+
+    public boolean isCompressedType(String name) {
+        String lowerName = name.toLowerCase(Locale.ROOT);
+        return storedExtensions.stream().anyMatch(lowerName::endsWith);
+    }
+
+    public boolean isWorthCompressing(Path file, String name, long size) throws IOException {
+        if (isCompressedType(name)) return false;
+        if (!probe || size < SAMPLE_SIZE) return true;
+
+        ByteBuffer sample = ByteBuffer.allocate(SAMPLE_SIZE);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long position = size >= 2L * SAMPLE_SIZE ? size / 2 - SAMPLE_SIZE / 2 : 0;
+            while (sample.hasRemaining()) {
+                int read = channel.read(sample, position + sample.position());
+                if (read < 0) break;
+            }
+        }
+        return isWorthCompressing(sample.array(), sample.position());
+    }
+
+    /**
+     * Same as {@link #isWorthCompressing(Path, String, long)}, for a file that was read whole.
+     */
+    public boolean isWorthCompressing(String name, byte[] data) {
+        if (isCompressedType(name)) return false;
+        if (!probe || data.length < SAMPLE_SIZE) return true;
+
+        int offset = data.length >= 2 * SAMPLE_SIZE ? data.length / 2 - SAMPLE_SIZE / 2 : 0;
+        return isWorthCompressing(Arrays.copyOfRange(data, offset, offset + SAMPLE_SIZE), SAMPLE_SIZE);
+    }
+
+    /**
+     * Tries the first 64 KB of {@code data}.
+     */
+    public boolean isWorthCompressing(byte[] data, int length) {
+        if (!probe || length < 1024) return true;
+
+        int sampleLength = Math.min(length, SAMPLE_SIZE);
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+        try {
+            deflater.setInput(data, 0, sampleLength);
+            deflater.finish();
+
+            byte[] output = new byte[8192];
+            long compressed = 0;
+            while (!deflater.finished() && compressed < sampleLength) {
+                compressed += deflater.deflate(output);
+            }
+            return compressed < sampleLength * (1 - MIN_SAVING);
+        } finally {
+            deflater.end();
+        }
+    }
+}
@@ -0,0 +1,382 @@
+package me.norax.nyaBackup.methods;
+
+import me.norax.nyaBackup.ConfigManager;
+import me.norax.nyaBackup.IoExecutor;
+import me.norax.nyaBackup.IoThrottle;
+import me.norax.nyaBackup.NyaBackup;
+import me.norax.nyaBackup.helpers.Logger;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Predicate;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * Remembers the size, modification time, inode and (for small files) content
+ * hash of every file that goes into a backup, in {@code plugins/NyaBackup/index.txt}.
+ * <p>
+ * Excluded folders are skipped as a whole instead of being walked, and with
+ * {@code performance.watch_files} only the paths a {@link WatchService} reported
+ * since the previous scan are looked at again. Comparing a scan with the state
+ * of the last successful backup tells what changed without reading any file.
+ * New small files are hashed on virtual threads while the walk goes on.
+ */
+public class FileIndex implements Closeable {
+    private static final String HEADER = "nyabackup-index:1";
+    private static final long HASH_LIMIT = 1024 * 1024;
+
+    private final Path serverDir;
+    private final Path indexFile;
+    private final List<PathMatcher> exclusions;
+    private final List<PathMatcher> excludedDirs;
+    private final IoThrottle throttle;
+    private final IoExecutor io;
+    private boolean watch;
+
+    private Map<String, Entry> committed = new HashMap<>();
+    private TreeMap<String, Entry> current = new TreeMap<>();
+    private WatchService watcher;
+    private final Map<WatchKey, Path> watchedDirs = new HashMap<>();
+    private final Set<Path> dirtyPaths = new HashSet<>();
+    private final Set<Path> createdPaths = new HashSet<>();
+    private boolean fullScan = true;
+
+    public FileIndex(NyaBackup plugin) {
+        this.serverDir = plugin.getServer().getWorldContainer().toPath();
+        this.indexFile = plugin.getDataFolder().toPath().resolve("index.txt");
+        this.throttle = plugin.getIoThrottle();
+        this.io = plugin.getIoExecutor();
+        this.watch = plugin.getConfigManager().isWatchFiles();
+
+        List<String> patterns = ConfigManager.getExclusions().stream()
+                .map(pattern -> pattern.endsWith("/*") && !pattern.endsWith("/**") ? pattern + "*" : pattern)
+                .toList();
+        this.exclusions = patterns.stream()
+                .map(pattern -> FileSystems.getDefault().getPathMatcher("glob:" + pattern))
+                .toList();
+        // "folder/**" excludes everything below folder, so there is no need to walk into it
+        this.excludedDirs = patterns.stream()
+                .filter(pattern -> pattern.endsWith("/**"))
+                .map(pattern -> FileSystems.getDefault().getPathMatcher("glob:" + pattern.substring(0, pattern.length() - 3)))
+                .toList();
+
+        try {
+            load();
+        } catch (IOException | RuntimeException e) {
+            Logger.warn("Failed to read the file index, every file will count as changed: " + e.getMessage());
+            committed = new HashMap<>();
+        }
+    }
+
+    /**
+     * Lists the files to back up and what changed since the last {@link #commit(Scan)}.
+     */
+    public synchronized Scan scan() throws IOException {
+        if (watch && watcher == null) {
+            try {
+                watcher = serverDir.getFileSystem().newWatchService();
+            } catch (IOException | UnsupportedOperationException e) {
+                Logger.warn("Can't watch the server files, falling back to full scans: " + e.getMessage());
+            }
+        }
+        drainEvents();
+
+        if (fullScan) {
+            TreeMap<String, Entry> previous = current;
+            current = new TreeMap<>();
+            walk(serverDir, previous);
+            // without a watcher there is no way to know what changed in between
+            fullScan = watcher == null;
+        } else {
+            for (Path path : dirtyPaths) {
+                refresh(path, createdPaths.contains(path));
+            }
+        }
+        dirtyPaths.clear();
+        createdPaths.clear();
+
+        List<Path> files = new ArrayList<>(current.size());
+        List<Path> changed = new ArrayList<>();
+        for (Entry entry : current.values()) {
+            Path file = serverDir.resolve(entry.path());
+            files.add(file);
+            Entry old = committed.get(entry.path());
+            if (old == null || !old.sameContent(entry)) {
+                changed.add(file);
+            }
+        }
+        List<String> removed = committed.keySet().stream()
+                .filter(path -> !current.containsKey(path))
+                .toList();
+
+        return new Scan(files, changed, removed, !committed.isEmpty(), new HashMap<>(current));
+    }
+
+    /**
+     * Remembers a scan as the state of the last successful backup.
+     */
+    public synchronized void commit(Scan scan) throws IOException {
+        commit(scan, path -> true);
+    }
+
+    /**
+     * Like {@link #commit(Scan)}, for the files {@code include} accepts only, the
+     * others keep the state of their own last backup.
+     */
+    public synchronized void commit(Scan scan, Predicate<String> include) throws IOException {
+        Map<String, Entry> next = new HashMap<>();
+        committed.forEach((path, entry) -> {
+            if (!include.test(path)) next.put(path, entry);
+        });
+        scan.state().forEach((path, entry) -> {
+            if (include.test(path)) next.put(path, entry);
+        });
+        committed = next;
+
+        Path tempFile = indexFile.resolveSibling(indexFile.getFileName() + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(tempFile, StandardCharsets.UTF_8)) {
+            writer.write(HEADER);
+            writer.newLine();
+            for (Entry entry : committed.values()) {
+                writer.write(entry.toLine());
+                writer.newLine();
+            }
+        }
+        Files.move(tempFile, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (watcher != null) {
+            watcher.close();
+            watcher = null;
+        }
+    }
+
+    private void load() throws IOException {
+        if (!Files.exists(indexFile)) return;
+
+        List<String> lines = Files.readAllLines(indexFile, StandardCharsets.UTF_8);
+        if (lines.isEmpty() || !lines.getFirst().equals(HEADER)) {
+            throw new IOException("Unknown index format");
+        }
+        for (String line : lines.subList(1, lines.size())) {
+            String[] parts = line.split(":", 5);
+            Entry entry = new Entry(parts[4], Long.parseLong(parts[0]), Long.parseLong(parts[1]), parts[2], parts[3]);
+            committed.put(entry.path(), entry);
+        }
+    }
+
+    private void drainEvents() {
+        if (watcher == null) return;
+
+        WatchKey key;
+        while ((key = watcher.poll()) != null) {
+            Path dir = watchedDirs.get(key);
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == OVERFLOW) {
+                    fullScan = true;
+                } else if (dir != null) {
+                    Path path = dir.resolve((Path) event.context());
+                    dirtyPaths.add(path);
+                    if (event.kind() == ENTRY_CREATE) createdPaths.add(path);
+                }
+            }
+            if (!key.reset()) {
+                watchedDirs.remove(key);
+            }
+        }
+
+        // too many events were lost, start over from a full walk
+        if (fullScan) {
+            watchedDirs.keySet().forEach(WatchKey::cancel);
+            watchedDirs.clear();
+            dirtyPaths.clear();
+            createdPaths.clear();
+        }
+    }
+
+    /**
+     * Gives up on watching for good, usually because the system ran out of watches
+     * (inotify's max_user_watches on Linux). The walk goes on, backups never fail over it.
+     */
+    private void stopWatching(IOException cause) {
+        Logger.warn("Can't watch more than " + watchedDirs.size() + " folders, falling back to full scans: " + cause.getMessage());
+        watch = false;
+        fullScan = true;
+        watchedDirs.clear();
+        try {
+            watcher.close();
+        } catch (IOException e) {
+            Logger.debug("Failed to close the file watcher: " + e.getMessage());
+        }
+        watcher = null;
+    }
+
+    private void refresh(Path path, boolean created) throws IOException {
+        String relativePath = Archives.relativePath(serverDir, path);
+
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        } catch (NoSuchFileException e) {
+            current.remove(relativePath);
+            forgetDirectory(path, relativePath);
+            return;
+        }
+
+        if (attributes.isDirectory()) {
+            // already watched folders report their own changes
+            if (created || !watchedDirs.containsValue(path)) {
+                walk(path, current);
+            }
+        } else if (attributes.isRegularFile() && !isExcluded(relativePath)) {
+            forgetDirectory(path, relativePath);
+            try {
+                current.put(relativePath, entryFor(path, relativePath, attributes, current));
+            } catch (NoSuchFileException e) {
+                current.remove(relativePath);
+            }
+        } else {
+            current.remove(relativePath);
+        }
+    }
+
+    private void forgetDirectory(Path dir, String relativePath) {
+        current.subMap(relativePath + "/", relativePath + "0").clear();
+        watchedDirs.entrySet().removeIf(watched -> {
+            if (!watched.getValue().startsWith(dir)) return false;
+            watched.getKey().cancel();
+            return true;
+        });
+    }
+
+    private void walk(Path start, Map<String, Entry> previous) throws IOException {
+        Map<String, CompletableFuture<Entry>> hashing = new HashMap<>();
+        Files.walkFileTree(start, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attributes) throws IOException {
+                if (!dir.equals(serverDir) && isExcludedDir(Archives.relativePath(serverDir, dir))) {
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                if (watcher != null) {
+                    try {
+                        watchedDirs.put(dir.register(watcher, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY), dir);
+                    } catch (IOException e) {
+                        stopWatching(e);
+                    }
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) throws IOException {
+                String relativePath = Archives.relativePath(serverDir, file);
+                if (attributes.isRegularFile() && !isExcluded(relativePath)) {
+                    Entry known = findKnown(relativePath, attributes, previous);
+                    if (known == null && attributes.size() <= HASH_LIMIT) {
+                        hashing.put(relativePath, io.submit(() -> hashEntry(file, relativePath, attributes)));
+                    } else {
+                        current.put(relativePath, known != null ? known : newEntry(relativePath, attributes, "-"));
+                    }
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) throws IOException {
+                // deleted by the server while walking
+                if (e instanceof NoSuchFileException) return FileVisitResult.CONTINUE;
+                throw e;
+            }
+        });
+
+        for (Map.Entry<String, CompletableFuture<Entry>> hash : hashing.entrySet()) {
+            try {
+                current.put(hash.getKey(), hash.getValue().join());
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof NoSuchFileException) {
+                    current.remove(hash.getKey());
+                } else {
+                    throw e.getCause() instanceof IOException io ? io : new IOException(e.getCause());
+                }
+            }
+        }
+    }
+
+    private Entry entryFor(Path file, String relativePath, BasicFileAttributes attributes,
+                           Map<String, Entry> previous) throws IOException {
+        Entry known = findKnown(relativePath, attributes, previous);
+        if (known != null) return known;
+
+        // small files are often rewritten without changing (configs, plugin data), the
+        // hash lets those count as unchanged. Big ones are left to the compressors.
+        return attributes.size() <= HASH_LIMIT ? hashEntry(file, relativePath, attributes) : newEntry(relativePath, attributes, "-");
+    }
+
+    private @Nullable Entry findKnown(String relativePath, BasicFileAttributes attributes, Map<String, Entry> previous) {
+        Entry entry = newEntry(relativePath, attributes, "-");
+        for (Entry known : new Entry[]{committed.get(relativePath), previous.get(relativePath)}) {
+            if (known != null && known.size() == entry.size() && known.modified() == entry.modified() && known.key().equals(entry.key())) {
+                return known;
+            }
+        }
+        return null;
+    }
+
+    private Entry hashEntry(Path file, String relativePath, BasicFileAttributes attributes) throws IOException {
+        MessageDigest digest = Archives.newDigest();
+        try (InputStream in = throttle.read(Files.newInputStream(file))) {
+            digest.update(in.readAllBytes());
+        }
+        return newEntry(relativePath, attributes, Archives.hex(digest));
+    }
+
+    private static Entry newEntry(String relativePath, BasicFileAttributes attributes, String hash) {
+        String key = attributes.fileKey() == null ? "-" : attributes.fileKey().toString();
+        return new Entry(relativePath, attributes.size(), attributes.lastModifiedTime().toMillis(), key, hash);
+    }
+
+    private boolean isExcluded(String relativePath) {
+        Path path = Path.of(relativePath);
+        return exclusions.stream().anyMatch(matcher -> matcher.matches(path));
+    }
+
+    private boolean isExcludedDir(String relativePath) {
+        Path path = Path.of(relativePath);
+        return excludedDirs.stream().anyMatch(matcher -> matcher.matches(path));
+    }
+
+    /**
+     * @param files     every file to back up, sorted by path
+     * @param changed   the files that are new or changed since the last committed scan
+     * @param removed   relative paths of the files that disappeared since then
+     * @param hasParent whether there was a committed scan to compare with
+     */
+    public record Scan(List<Path> files, List<Path> changed, List<String> removed, boolean hasParent,
+                       Map<String, Entry> state) {
+    }
+
+    public record Entry(String path, long size, long modified, String key, String hash) {
+        boolean sameContent(Entry other) {
+            if (size != other.size) return false;
+            if (!hash.equals("-") && !other.hash.equals("-")) return hash.equals(other.hash);
+            return modified == other.modified && key.equals(other.key);
+        }
+
+        String toLine() {
+            return size + ":" + modified + ":" + key + ":" + hash + ":" + path;
+        }
+    }
+}
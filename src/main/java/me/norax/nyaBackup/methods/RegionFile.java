@@ -0,0 +1,70 @@
+package me.norax.nyaBackup.methods;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+
+/**
+ * Helpers for the Anvil region format (.mca).
+ * <p>
+ * A region file starts with two 4 KiB tables of 1024 entries each: the chunk
+ * locations (3 byte sector offset + 1 byte sector count) followed by the last
+ * modification timestamps. Chunk data lives in whole 4 KiB sectors after that.
+ */
+final class RegionFile {
+    static final int SECTOR_SIZE = 4096;
+    static final int SLOTS = 1024;
+    static final int HEADER_SIZE = SECTOR_SIZE * 2;
+
+    private RegionFile() {
+    }
+
+    static boolean isRegionFile(Path file, long size) {
+        return size >= HEADER_SIZE && file.getFileName().toString().endsWith(".mca");
+    }
+
+    static int location(ByteBuffer header, int slot) {
+        return header.getInt(slot * 4);
+    }
+
+    static int timestamp(ByteBuffer header, int slot) {
+        return header.getInt(SECTOR_SIZE + slot * 4);
+    }
+
+    static long sectorOffset(int location) {
+        return (long) (location >>> 8) * SECTOR_SIZE;
+    }
+
+    static int sectorLength(int location) {
+        return (location & 0xFF) * SECTOR_SIZE;
+    }
+
+    /**
+     * Reads the sectors a chunk occupies, cut short if the file ends before them.
+     */
+    static byte[] readSectors(FileChannel channel, int location, long fileSize) throws IOException {
+        long offset = sectorOffset(location);
+        int length = (int) Math.max(0, Math.min(sectorLength(location), fileSize - offset));
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        readFully(channel, buffer, offset);
+        return buffer.array();
+    }
+
+    static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new EOFException("Unexpected end of region file");
+            }
+            position += read;
+        }
+    }
+
+    static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+}
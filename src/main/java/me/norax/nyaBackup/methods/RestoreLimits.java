@@ -0,0 +1,52 @@
+package me.norax.nyaBackup.methods;
+
+import me.norax.nyaBackup.IoThrottle;
+import me.norax.nyaBackup.NyaBackup;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * How much of the machine a restore may take. A full restore stops the server
+ * anyway and gets every core, restores that run while the server keeps going
+ * share it with the ticks like a backup does.
+ *
+ * @param threads  how many entries are extracted at once
+ * @param throttle limits the writes, null for none
+ */
+public record RestoreLimits(int threads, @Nullable IoThrottle throttle) {
+    public static RestoreLimits offline() {
+        return new RestoreLimits(Runtime.getRuntime().availableProcessors(), null);
+    }
+
+    /**
+     * {@code performance.threads} workers, writing through the plugin's {@link IoThrottle}.
+     */
+    public static RestoreLimits live(NyaBackup plugin) {
+        return new RestoreLimits(plugin.getConfigManager().getCompressionThreads(), plugin.getIoThrottle());
+    }
+
+    /**
+     * Like {@link Files#copy(InputStream, Path, java.nio.file.CopyOption...)} replacing the target.
+     *
+     * @return how many bytes were written
+     */
+    long copy(InputStream in, Path targetPath) throws IOException {
+        if (throttle == null) {
+            return Files.copy(in, targetPath, StandardCopyOption.REPLACE_EXISTING);
+        }
+        try (OutputStream out = throttle.write(Files.newOutputStream(targetPath))) {
+            return in.transferTo(out);
+        }
+    }
+
+    void acquireWrite(long bytes) throws InterruptedIOException {
+        if (throttle != null) throttle.acquireWrite(bytes);
+    }
+}
@@ -0,0 +1,51 @@
+package me.norax.nyaBackup.methods;
+
+import me.norax.nyaBackup.helpers.Logger;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts the bytes a restore wrote so far and logs every 10%, or every GB when
+ * the format does not know its total size up front.
+ */
+public class RestoreProgress {
+    private static final long UNKNOWN_TOTAL_STEP = 1024L * 1024 * 1024;
+
+    private final String name;
+    private final AtomicLong done = new AtomicLong();
+    private final long startNanos = System.nanoTime();
+    private volatile long total;
+    private long lastReported;
+
+    public RestoreProgress(String name) {
+        this.name = name;
+    }
+
+    public void setTotal(long total) {
+        this.total = total;
+    }
+
+    public long getDone() {
+        return done.get();
+    }
+
+    public void add(long bytes) {
+        long now = done.addAndGet(bytes);
+        long step = total > 0 ? Math.max(1, total / 10) : UNKNOWN_TOTAL_STEP;
+
+        synchronized (this) {
+            if (now / step <= lastReported / step) return;
+            lastReported = now;
+        }
+
+        if (total > 0) {
+            Logger.info("Restoring " + name + ": " + Math.min(100, now * 100 / total) + "%");
+        } else {
+            Logger.info("Restoring " + name + ": " + now / (1024 * 1024) + " MB");
+        }
+    }
+
+    public long getElapsedMillis() {
+        return (System.nanoTime() - startNanos) / 1_000_000;
+    }
+}
@@ -0,0 +1,209 @@
+package me.norax.nyaBackup.methods;
+
+import me.norax.nyaBackup.BackupMetrics;
+import me.norax.nyaBackup.IoExecutor;
+import me.norax.nyaBackup.IoThrottle;
+import me.norax.nyaBackup.NyaBackup;
+import org.apache.commons.compress.archivers.sevenz.SevenZArchiveEntry;
+import org.apache.commons.compress.archivers.sevenz.SevenZFile;
+import org.apache.commons.compress.archivers.sevenz.SevenZMethod;
+import org.apache.commons.compress.archivers.sevenz.SevenZMethodConfiguration;
+import org.apache.commons.compress.archivers.sevenz.SevenZOutputFile;
+import org.tukaani.xz.LZMA2Options;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.function.Predicate;
+
+/**
+ * Real 7z archives compressed with LZMA2.
+ */
+public class SevenZipCompressor implements Compressor {
+    private static final byte[] ZIP_SIGNATURE = {'P', 'K', 3, 4};
+    // the dictionary of preset 9, the largest this plugin writes
+    private static final long MAX_DICTIONARY = 64L * 1024 * 1024;
+
+    private final int preset;
+    private final ZipCompressor legacyCompressor;
+    private final IoThrottle throttle;
+    private final BackupMetrics metrics;
+    private final IoExecutor io;
+    private final CompressionProbe probe;
+
+    public SevenZipCompressor(NyaBackup plugin, ZipCompressor legacyCompressor) {
+        int level = plugin.getConfigManager().getCompressionLevel();
+        this.preset = level > 0 ? Math.min(level, 9) : LZMA2Options.PRESET_DEFAULT;
+        this.legacyCompressor = legacyCompressor;
+        this.throttle = plugin.getIoThrottle();
+        this.metrics = plugin.getMetrics();
+        this.io = plugin.getIoExecutor();
+        this.probe = new CompressionProbe(plugin);
+    }
+
+    @Override
+    public String getName() {
+        return "7z";
+    }
+
+    @Override
+    public String getExtension() {
+        return ".7z";
+    }
+
+    @Override
+    public long createBackup(Path backupFile, Path sourceDir, List<Path> files, String filename) throws IOException {
+        StringBuilder reference = new StringBuilder("original:" + filename + "\n");
+        MessageDigest digest = Archives.newDigest();
+        byte[] buffer = new byte[64 * 1024];
+        long totalSize = 0;
+
+        try (SevenZOutputFile out = new SevenZOutputFile(throttle.write(Files.newByteChannel(backupFile,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)));
+             IoExecutor.Prefetch prefetch = io.prefetch(files)) {
+            out.setContentMethods(List.of(new SevenZMethodConfiguration(SevenZMethod.LZMA2, new LZMA2Options(preset))));
+
+            while (prefetch.hasNext()) {
+                IoExecutor.FileData file = prefetch.next();
+                if (file.isMissing()) continue;
+                String relativePath = Archives.relativePath(sourceDir, file.file());
+
+                InputStream in;
+                SevenZArchiveEntry entry;
+                boolean worthCompressing;
+                try {
+                    if (file.data() != null) {
+                        in = new DigestInputStream(new ByteArrayInputStream(file.data()), digest);
+                        entry = new SevenZArchiveEntry();
+                        entry.setName(relativePath);
+                        entry.setLastModifiedTime(FileTime.fromMillis(file.modified()));
+                        worthCompressing = probe.isWorthCompressing(relativePath, file.data());
+                    } else {
+                        entry = out.createArchiveEntry(file.file().toFile(), relativePath);
+                        worthCompressing = probe.isWorthCompressing(file.file(), relativePath, file.size());
+                        // opened last, nothing after it can skip the file and leave it open
+                        in = new DigestInputStream(throttle.read(Files.newInputStream(file.file())), digest);
+                    }
+                    if (!worthCompressing) {
+                        entry.setContentMethods(List.of(new SevenZMethodConfiguration(SevenZMethod.COPY)));
+                    }
+                } catch (NoSuchFileException e) {
+                    continue;
+                }
+
+                digest.reset();
+                long start = System.nanoTime();
+                long size = 0;
+                try (in) {
+                    out.putArchiveEntry(entry);
+                    int read;
+                    while ((read = in.read(buffer)) > 0) {
+                        out.write(buffer, 0, read);
+                        size += read;
+                    }
+                    out.closeArchiveEntry();
+                }
+                totalSize += size;
+                metrics.recordEntry(relativePath, System.nanoTime() - start, size);
+                reference.append("entry:").append(Archives.hex(digest)).append(':').append(relativePath).append('\n');
+            }
+
+            SevenZArchiveEntry refEntry = new SevenZArchiveEntry();
+            refEntry.setName(Archives.REFERENCE_NAME);
+            out.putArchiveEntry(refEntry);
+            out.write(reference.toString().getBytes(StandardCharsets.UTF_8));
+            out.closeArchiveEntry();
+        }
+
+        // SevenZOutputFile writes the 32 byte start header at the front of the file last, once
+        // it knows where the end header went. SHA-256 has to see those bytes first, so unlike
+        // the streaming formats the checksum can only be taken once the archive is finished
+        MessageDigest archiveDigest = Archives.newDigest();
+        try (InputStream in = new DigestInputStream(Files.newInputStream(backupFile), archiveDigest)) {
+            while (in.read(buffer) >= 0) {
+                // the digest sees every byte read
+            }
+        }
+        Archives.writeChecksum(backupFile, archiveDigest);
+        return totalSize;
+    }
+
+    @Override
+    public void extractBackup(Path backupFile, Path targetDir, Predicate<String> filter, RestoreLimits limits,
+                              RestoreProgress progress) throws IOException {
+        if (isLegacyZip(backupFile)) {
+            // backups made before 7z support was added are zip files with a .7z extension
+            legacyCompressor.extractBackup(backupFile, targetDir, filter, limits, progress);
+            return;
+        }
+
+        // SevenZOutputFile compresses every entry on its own (one folder each, the archive
+        // is not solid), so each worker opens the archive and decompresses its share of them
+        List<Integer> selected = new ArrayList<>();
+        long total = 0;
+        try (SevenZFile sevenZFile = open(backupFile)) {
+            int index = 0;
+            for (SevenZArchiveEntry entry : sevenZFile.getEntries()) {
+                if (!entry.isDirectory() && !entry.getName().endsWith(".reference") && filter.test(entry.getName())) {
+                    selected.add(index);
+                    total += entry.getSize();
+                }
+                index++;
+            }
+        }
+        progress.setTotal(total);
+
+        // every LZMA2 stream allocates its whole dictionary, keep them within a quarter of the heap
+        long byMemory = Math.max(1, Runtime.getRuntime().maxMemory() / 4 / MAX_DICTIONARY);
+        int threads = (int) Math.max(1, Math.min(Math.min(limits.threads(), byMemory), selected.size()));
+        ExecutorService workers = Archives.newWorkerPool(threads, "NyaBackup-restore");
+        try {
+            List<Future<?>> tasks = new ArrayList<>(threads);
+            for (int worker = 0; worker < threads; worker++) {
+                List<Integer> share = selected.subList(selected.size() * worker / threads, selected.size() * (worker + 1) / threads);
+                tasks.add(workers.submit(() -> {
+                    // SevenZFile is not thread safe, and only takes its own entries
+                    try (SevenZFile sevenZFile = open(backupFile)) {
+                        List<SevenZArchiveEntry> entries = new ArrayList<>();
+                        sevenZFile.getEntries().forEach(entries::add);
+                        for (int index : share) {
+                            SevenZArchiveEntry entry = entries.get(index);
+                            Path targetPath = Archives.resolveEntry(targetDir, entry.getName());
+                            try (InputStream in = sevenZFile.getInputStream(entry)) {
+                                progress.add(limits.copy(in, targetPath));
+                            }
+                        }
+                    }
+                    return null;
+                }));
+            }
+            Archives.awaitAll(tasks);
+        } finally {
+            workers.shutdownNow();
+        }
+    }
+
+    private static SevenZFile open(Path backupFile) throws IOException {
+        return SevenZFile.builder().setFile(backupFile.toFile()).get();
+    }
+
+    private static boolean isLegacyZip(Path backupFile) throws IOException {
+        try (InputStream in = Files.newInputStream(backupFile)) {
+            byte[] signature = in.readNBytes(ZIP_SIGNATURE.length);
+            return Arrays.equals(signature, ZIP_SIGNATURE);
+        }
+    }
+}
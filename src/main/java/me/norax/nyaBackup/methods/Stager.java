@@ -0,0 +1,119 @@
+package me.norax.nyaBackup.methods;
+
+import me.norax.nyaBackup.ConfigManager;
+import me.norax.nyaBackup.IoThrottle;
+import me.norax.nyaBackup.NyaBackup;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.List;
+
+import static net.lingala.zip4j.util.Zip4jUtil.createDirectoryIfNotExists;
+import static org.codehaus.plexus.util.FileUtils.deleteDirectory;
+
+/**
+ * Takes a point-in-time copy of the files to back up into a staging folder, so
+ * the slow compression can run from the copy while the server keeps saving.
+ * <p>
+ * Files the server replaces with a rename instead of writing in place (player
+ * data, level.dat) are hardlinked, everything else is copied with
+ * {@link FileChannel#transferTo}, which lets the kernel use copy_file_range or
+ * reflinks on filesystems that support them.
+ */
+public class Stager {
+    private static final long COPY_STEP = 8L * 1024 * 1024;
+
+    private final Path serverDir;
+    private final Path stagingRoot;
+    private final List<PathMatcher> hardlinkMatchers;
+    private final IoThrottle throttle;
+
+    public Stager(NyaBackup plugin) {
+        this.serverDir = plugin.getServer().getWorldContainer().toPath();
+        this.stagingRoot = plugin.getDataFolder().toPath().resolve("staging");
+        this.hardlinkMatchers = ConfigManager.getHardlinkPatterns().stream()
+                .map(pattern -> FileSystems.getDefault().getPathMatcher("glob:" + pattern))
+                .toList();
+        this.throttle = plugin.getIoThrottle();
+
+        // leftovers of a backup that was interrupted by a crash or shutdown
+        try {
+            deleteDirectory(stagingRoot.toFile());
+        } catch (IOException e) {
+            plugin.getLogger().warning("Failed to clean the staging folder: " + e.getMessage());
+        }
+    }
+
+    public Path getStagingDir(String name) {
+        return stagingRoot.resolve(name);
+    }
+
+    /**
+     * Copies the files into {@link #getStagingDir(String)}, keeping their path relative to the server directory.
+     *
+     * @return the staged copies, in the same order
+     */
+    public List<Path> stage(String name, List<Path> files) throws IOException {
+        Path stagingDir = getStagingDir(name);
+        deleteDirectory(stagingDir.toFile());
+
+        List<Path> staged = new ArrayList<>(files.size());
+        for (Path file : files) {
+            Path relativePath = serverDir.relativize(file);
+            Path target = stagingDir.resolve(relativePath.toString());
+            createDirectoryIfNotExists(target.getParent().toFile());
+
+            try {
+                if (!shouldHardlink(relativePath) || !tryHardlink(target, file)) {
+                    copy(file, target);
+                }
+            } catch (NoSuchFileException e) {
+                // deleted by the server since it was listed
+                continue;
+            }
+            staged.add(target);
+        }
+        return staged;
+    }
+
+    public void cleanup(String name) throws IOException {
+        deleteDirectory(getStagingDir(name).toFile());
+    }
+
+    private boolean shouldHardlink(Path relativePath) {
+        return hardlinkMatchers.stream().anyMatch(matcher -> matcher.matches(relativePath));
+    }
+
+    private static boolean tryHardlink(Path link, Path existing) throws IOException {
+        try {
+            Files.createLink(link, existing);
+            return true;
+        } catch (UnsupportedOperationException | FileSystemException e) {
+            if (e instanceof NoSuchFileException noSuchFile) throw noSuchFile;
+            // not supported here or the staging folder is on another filesystem
+            return false;
+        }
+    }
+
+    private void copy(Path source, Path target) throws IOException {
+        try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                     StandardOpenOption.TRUNCATE_EXISTING)) {
+            long size = in.size();
+            long position = 0;
+            while (position < size) {
+                // copied in steps so the throttle gets a say in between
+                long step = Math.min(COPY_STEP, size - position);
+                throttle.acquireRead(step);
+                throttle.acquireWrite(step);
+                long transferred = in.transferTo(position, step, out);
+                if (transferred <= 0) break;
+                position += transferred;
+            }
+        }
+        // incremental backups compare modification times, so the copy has to keep it
+        Files.setLastModifiedTime(target, Files.getLastModifiedTime(source));
+    }
+}
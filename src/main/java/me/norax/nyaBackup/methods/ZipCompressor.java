@@ -0,0 +1,223 @@
+package me.norax.nyaBackup.methods;
+
+import me.norax.nyaBackup.BackupMetrics;
+import me.norax.nyaBackup.IoExecutor;
+import me.norax.nyaBackup.IoThrottle;
+import me.norax.nyaBackup.NyaBackup;
+import me.norax.nyaBackup.Offsite;
+import org.apache.commons.compress.archivers.zip.Zip64Mode;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.function.Predicate;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Zip archives, either deflated ("zip") or stored without compression ("store").
+ */
+public class ZipCompressor implements Compressor {
+    private static final long MAX_BUFFERED_ENTRY = 16L * 1024 * 1024;
+
+    private final int threads;
+    private final int level;
+    private final boolean store;
+    private final IoThrottle throttle;
+    private final BackupMetrics metrics;
+    private final Offsite offsite;
+    private final CompressionProbe probe;
+    private final IoExecutor io;
+
+    public ZipCompressor(NyaBackup plugin, boolean store) {
+        this.threads = plugin.getConfigManager().getCompressionThreads();
+        int level = plugin.getConfigManager().getCompressionLevel();
+        this.level = level > 0 ? Math.min(level, Deflater.BEST_COMPRESSION) : Deflater.DEFAULT_COMPRESSION;
+        this.store = store;
+        this.throttle = plugin.getIoThrottle();
+        this.metrics = plugin.getMetrics();
+        this.offsite = plugin.getOffsite();
+        this.probe = new CompressionProbe(plugin);
+        this.io = plugin.getIoExecutor();
+    }
+
+    @Override
+    public String getName() {
+        return store ? "store" : "zip";
+    }
+
+    @Override
+    public String getExtension() {
+        return ".zip";
+    }
+
+    /**
+     * Reads the entry list from the central directory and inflates the entries
+     * on {@code limits.threads()} threads at once, each straight into its own file.
+     */
+    @Override
+    public void extractBackup(Path backupFile, Path targetDir, Predicate<String> filter, RestoreLimits limits,
+                              RestoreProgress progress) throws IOException {
+        ExecutorService workers = Archives.newWorkerPool(limits.threads(), "NyaBackup-restore");
+
+        try (ZipFile zipFile = new ZipFile(backupFile.toFile())) {
+            List<? extends ZipEntry> entries = zipFile.stream()
+                    .filter(entry -> !entry.isDirectory() && !entry.getName().endsWith(".reference"))
+                    .filter(entry -> filter.test(entry.getName()))
+                    .toList();
+            progress.setTotal(entries.stream().mapToLong(ZipEntry::getSize).sum());
+
+            List<Future<?>> tasks = new ArrayList<>(entries.size());
+            for (ZipEntry entry : entries) {
+                tasks.add(workers.submit(() -> {
+                    Path targetPath = Archives.resolveEntry(targetDir, entry.getName());
+                    try (InputStream in = zipFile.getInputStream(entry)) {
+                        progress.add(limits.copy(in, targetPath));
+                    }
+                    return null;
+                }));
+            }
+            Archives.awaitAll(tasks);
+        } finally {
+            workers.shutdownNow();
+        }
+    }
+
+
+    /**
+     * Deflates files on a pool of worker threads while this thread writes the
+     * finished entries into the archive in their original order. At most two
+     * entries per worker are kept in flight, large ones are buffered on disk.
+     * Small files are read ahead on virtual threads, so the workers only deflate.
+     */
+    @Override
+    public long createBackup(Path backupFile, Path sourceDir, List<Path> files, String filename) throws IOException {
+        ExecutorService workers = Archives.newWorkerPool(threads, "NyaBackup-compressor");
+
+        MessageDigest archiveDigest = Archives.newDigest();
+        StringBuilder reference = new StringBuilder("original:" + filename + "\n");
+        long totalSize = 0;
+
+        try (ZipArchiveOutputStream zos = new ZipArchiveOutputStream(Archives.openDigestStream(backupFile, archiveDigest, throttle, offsite));
+             IoExecutor.Prefetch prefetch = io.prefetch(files)) {
+            zos.setUseZip64(Zip64Mode.AsNeeded);
+
+            Deque<Future<CompressedEntry>> pending = new ArrayDeque<>();
+            while (prefetch.hasNext()) {
+                IoExecutor.FileData file = prefetch.next();
+                if (file.isMissing()) continue;
+                pending.add(workers.submit(() -> compressEntry(sourceDir, file)));
+                if (pending.size() >= threads * 2) {
+                    totalSize += writeEntry(zos, pending.poll(), reference);
+                }
+            }
+            while (!pending.isEmpty()) {
+                totalSize += writeEntry(zos, pending.poll(), reference);
+            }
+
+            ZipArchiveEntry refEntry = new ZipArchiveEntry(filename + ".reference");
+            zos.putArchiveEntry(refEntry);
+            zos.write(reference.toString().getBytes(StandardCharsets.UTF_8));
+            zos.closeArchiveEntry();
+        } finally {
+            workers.shutdownNow();
+        }
+
+        Archives.writeChecksum(backupFile, archiveDigest);
+        return totalSize;
+    }
+
+    private CompressedEntry compressEntry(Path sourceDir, IoExecutor.FileData data) throws IOException {
+        Path file = data.file();
+        String relativePath = Archives.relativePath(sourceDir, file);
+
+        long size = data.size();
+        boolean stored;
+        try {
+            stored = store || (data.data() != null ? !probe.isWorthCompressing(relativePath, data.data())
+                    : !probe.isWorthCompressing(file, relativePath, size));
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+
+        Path spillFile = size > MAX_BUFFERED_ENTRY ? Files.createTempFile("nyabackup", ".deflate") : null;
+        ByteArrayOutputStream buffer = spillFile == null ? new ByteArrayOutputStream((int) (stored ? size : size / 2) + 64) : null;
+
+        long start = System.nanoTime();
+        Deflater deflater = new Deflater(level, true);
+        CRC32 crc = new CRC32();
+        MessageDigest digest = Archives.newDigest();
+        long uncompressed;
+        try (InputStream in = new DigestInputStream(new CheckedInputStream(open(data), crc), digest);
+             OutputStream sink = spillFile == null ? buffer : Files.newOutputStream(spillFile);
+             OutputStream out = stored ? sink : new DeflaterOutputStream(sink, deflater, 64 * 1024)) {
+            uncompressed = in.transferTo(out);
+        } catch (IOException e) {
+            if (spillFile != null) Files.deleteIfExists(spillFile);
+            if (e instanceof NoSuchFileException) return null;
+            throw e;
+        } finally {
+            deflater.end();
+        }
+
+        metrics.recordEntry(relativePath, System.nanoTime() - start, uncompressed);
+
+        ZipArchiveEntry entry = new ZipArchiveEntry(relativePath);
+        entry.setMethod(stored ? ZipEntry.STORED : ZipEntry.DEFLATED);
+        entry.setSize(uncompressed);
+        entry.setCrc(crc.getValue());
+        entry.setTime(data.modified());
+        entry.setCompressedSize(spillFile == null ? buffer.size() : Files.size(spillFile));
+        return new CompressedEntry(entry, Archives.hex(digest),
+                spillFile == null ? buffer.toByteArray() : null, spillFile);
+    }
+
+    private InputStream open(IoExecutor.FileData data) throws IOException {
+        return data.data() != null ? new ByteArrayInputStream(data.data()) : throttle.read(Files.newInputStream(data.file()));
+    }
+
+    private long writeEntry(ZipArchiveOutputStream zos, Future<CompressedEntry> future, StringBuilder reference) throws IOException {
+        CompressedEntry compressed;
+        try {
+            compressed = future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Backup interrupted");
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException io ? io : new IOException(e.getCause());
+        }
+
+        // the file was deleted by the server while it was queued
+        if (compressed == null) return 0;
+
+        reference.append("entry:").append(compressed.hash()).append(':').append(compressed.entry().getName()).append('\n');
+
+        if (compressed.spillFile() == null) {
+            zos.addRawArchiveEntry(compressed.entry(), new ByteArrayInputStream(compressed.data()));
+        } else {
+            try (InputStream in = Files.newInputStream(compressed.spillFile())) {
+                zos.addRawArchiveEntry(compressed.entry(), in);
+            } finally {
+                Files.deleteIfExists(compressed.spillFile());
+            }
+        }
+        return compressed.entry().getSize();
+    }
+
+    private record CompressedEntry(ZipArchiveEntry entry, String hash, byte[] data, Path spillFile) {
+    }
+}
@@ -0,0 +1,180 @@
+package me.norax.nyaBackup.methods;
+
+import com.github.luben.zstd.ZstdInputStream;
+import com.github.luben.zstd.ZstdOutputStream;
+import me.norax.nyaBackup.BackupMetrics;
+import me.norax.nyaBackup.IoExecutor;
+import me.norax.nyaBackup.IoThrottle;
+import me.norax.nyaBackup.NyaBackup;
+import me.norax.nyaBackup.Offsite;
+import me.norax.nyaBackup.helpers.Logger;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Predicate;
+
+/**
+ * Tar archives compressed with Zstandard, using zstd's own worker threads.
+ */
+public class ZstdCompressor implements Compressor {
+    private static final int DEFAULT_LEVEL = 3;
+    private static final int MAX_LEVEL = 22;
+
+    private final int threads;
+    private final int level;
+    private final IoThrottle throttle;
+    private final BackupMetrics metrics;
+    private final IoExecutor io;
+    private final Offsite offsite;
+
+    public ZstdCompressor(NyaBackup plugin) {
+        this.threads = plugin.getConfigManager().getCompressionThreads();
+        int level = plugin.getConfigManager().getCompressionLevel();
+        this.level = level > 0 ? Math.min(level, MAX_LEVEL) : DEFAULT_LEVEL;
+        this.throttle = plugin.getIoThrottle();
+        this.metrics = plugin.getMetrics();
+        this.io = plugin.getIoExecutor();
+        this.offsite = plugin.getOffsite();
+    }
+
+    @Override
+    public String getName() {
+        return "zstd";
+    }
+
+    @Override
+    public String getExtension() {
+        return ".tar.zst";
+    }
+
+    @Override
+    public long createBackup(Path backupFile, Path sourceDir, List<Path> files, String filename) throws IOException {
+        MessageDigest archiveDigest = Archives.newDigest();
+        MessageDigest digest = Archives.newDigest();
+        StringBuilder reference = new StringBuilder("original:" + filename + "\n");
+        byte[] buffer = new byte[64 * 1024];
+        long totalSize = 0;
+
+        ZstdOutputStream zstd = new ZstdOutputStream(Archives.openDigestStream(backupFile, archiveDigest, throttle, offsite), level);
+        zstd.setWorkers(threads);
+        zstd.setChecksum(true);
+
+        try (TarArchiveOutputStream tar = new TarArchiveOutputStream(zstd);
+             IoExecutor.Prefetch prefetch = io.prefetch(files)) {
+            tar.setLongFileMode(TarArchiveOutputStream.LONGFILE_POSIX);
+            tar.setBigNumberMode(TarArchiveOutputStream.BIGNUMBER_POSIX);
+
+            while (prefetch.hasNext()) {
+                IoExecutor.FileData file = prefetch.next();
+                if (file.isMissing()) continue;
+                String relativePath = Archives.relativePath(sourceDir, file.file());
+
+                InputStream in;
+                TarArchiveEntry entry;
+                try {
+                    if (file.data() != null) {
+                        in = new DigestInputStream(new ByteArrayInputStream(file.data()), digest);
+                        entry = new TarArchiveEntry(relativePath);
+                        entry.setSize(file.size());
+                        entry.setModTime(file.modified());
+                    } else {
+                        in = new DigestInputStream(throttle.read(Files.newInputStream(file.file())), digest);
+                        entry = new TarArchiveEntry(file.file(), relativePath);
+                    }
+                } catch (NoSuchFileException e) {
+                    continue;
+                }
+
+                digest.reset();
+                long start = System.nanoTime();
+                boolean complete;
+                try (in) {
+                    complete = writeEntry(tar, entry, in, buffer);
+                }
+                if (!complete) {
+                    // tar needs the size up front, so the short copy is already in the archive padded with
+                    // zeros. The file is read again in one go and added after it, extracting overwrites the
+                    // first copy with the second.
+                    digest.reset();
+                    byte[] data;
+                    long modified;
+                    try (InputStream retry = new DigestInputStream(throttle.read(Files.newInputStream(file.file())), digest)) {
+                        data = retry.readAllBytes();
+                        modified = Files.getLastModifiedTime(file.file()).toMillis();
+                    } catch (NoSuchFileException e) {
+                        Logger.warn(relativePath + " was deleted while it was backed up, its copy in the backup is incomplete");
+                        continue;
+                    }
+                    Logger.warn(relativePath + " shrank while it was backed up, added it again");
+                    entry = new TarArchiveEntry(relativePath);
+                    entry.setSize(data.length);
+                    entry.setModTime(modified);
+                    writeEntry(tar, entry, new ByteArrayInputStream(data), buffer);
+                }
+                totalSize += entry.getSize();
+                metrics.recordEntry(relativePath, System.nanoTime() - start, entry.getSize());
+                reference.append("entry:").append(Archives.hex(digest)).append(':').append(relativePath).append('\n');
+            }
+
+            byte[] referenceContent = reference.toString().getBytes(StandardCharsets.UTF_8);
+            TarArchiveEntry refEntry = new TarArchiveEntry(Archives.REFERENCE_NAME);
+            refEntry.setSize(referenceContent.length);
+            tar.putArchiveEntry(refEntry);
+            tar.write(referenceContent);
+            tar.closeArchiveEntry();
+        }
+
+        Archives.writeChecksum(backupFile, archiveDigest);
+        return totalSize;
+    }
+
+    /**
+     * Writes exactly {@code entry.getSize()} bytes, padding with zeros when the file
+     * shrank while it was read.
+     *
+     * @return false when it had to be padded
+     */
+    private static boolean writeEntry(TarArchiveOutputStream tar, TarArchiveEntry entry, InputStream in, byte[] buffer) throws IOException {
+        tar.putArchiveEntry(entry);
+        boolean complete = true;
+        long remaining = entry.getSize();
+        while (remaining > 0) {
+            int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+            if (read < 0) {
+                Arrays.fill(buffer, (byte) 0);
+                read = (int) Math.min(buffer.length, remaining);
+                complete = false;
+            }
+            tar.write(buffer, 0, read);
+            remaining -= read;
+        }
+        tar.closeArchiveEntry();
+        return complete;
+    }
+
+    @Override
+    public void extractBackup(Path backupFile, Path targetDir, Predicate<String> filter, RestoreLimits limits,
+                              RestoreProgress progress) throws IOException {
+        try (TarArchiveInputStream tar = new TarArchiveInputStream(
+                new ZstdInputStream(new BufferedInputStream(Files.newInputStream(backupFile), 1024 * 1024)))) {
+            TarArchiveEntry entry;
+            while ((entry = tar.getNextEntry()) != null) {
+                if (!entry.isFile() || entry.getName().endsWith(".reference") || !filter.test(entry.getName())) continue;
+
+                // a file added twice (see createBackup) ends up as its second copy
+                Path targetPath = Archives.resolveEntry(targetDir, entry.getName());
+                progress.add(limits.copy(tar, targetPath));
+            }
+        }
+    }
+}
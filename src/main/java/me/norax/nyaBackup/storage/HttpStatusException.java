@@ -0,0 +1,26 @@
+package me.norax.nyaBackup.storage;
+
+import java.io.IOException;
+
+/**
+ * A storage server answered, with an error status.
+ */
+public class HttpStatusException extends IOException {
+    private final int statusCode;
+
+    public HttpStatusException(String action, int statusCode, String body) {
+        super(action + " failed with HTTP " + statusCode + (body.isEmpty() ? "" : ": " + body));
+        this.statusCode = statusCode;
+    }
+
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    /**
+     * Server errors and throttling (429) may go away, other client errors won't.
+     */
+    public boolean isRetryable() {
+        return statusCode >= 500 || statusCode == 429;
+    }
+}
@@ -0,0 +1,380 @@
+package me.norax.nyaBackup.storage;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Any S3 compatible storage (AWS, MinIO, R2, B2, Wasabi...), spoken to directly
+ * over HTTP with AWS Signature Version 4 so the plugin does not ship an SDK.
+ * <p>
+ * Uploads are multipart: every {@code partSize} bytes written become a part
+ * that is sent in the background while the next one fills, with at most
+ * {@code parallelUploads} parts in flight (writers wait beyond that, which also
+ * bounds the memory to about {@code parallelUploads + 1} parts). Uploads smaller
+ * than one part are a single PUT.
+ */
+public class S3Storage implements StorageTarget {
+    private static final DateTimeFormatter AMZ_DATE = DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmss'Z'");
+    private static final String EMPTY_HASH = "e3b0c44298fc1c149afbf4c8996fb92427ae41e4649b934ca495991b7852b855";
+    private static final int MAX_ATTEMPTS = 3;
+    private static final long RETRY_DELAY_MILLIS = 1000;
+    private static final Pattern UPLOAD_ID = Pattern.compile("<UploadId>(.*?)</UploadId>");
+    private static final Pattern KEY = Pattern.compile("<Key>(.*?)</Key>");
+    private static final Pattern CONTINUATION = Pattern.compile("<NextContinuationToken>(.*?)</NextContinuationToken>");
+
+    private final URI endpoint;
+    private final String region;
+    private final String bucket;
+    private final String prefix;
+    private final String accessKey;
+    private final String secretKey;
+    private final boolean pathStyle;
+    private final int partSize;
+    private final int parallelUploads;
+    private final HttpClient client = HttpClient.newBuilder()
+            .connectTimeout(Duration.ofSeconds(30))
+            .build();
+
+    /**
+     * @param pathStyle {@code endpoint/bucket/key} instead of {@code bucket.endpoint/key}, what MinIO and most self-hosted stores expect
+     */
+    public S3Storage(String endpoint, String region, String bucket, String prefix, String accessKey, String secretKey,
+                     boolean pathStyle, int partSize, int parallelUploads) {
+        this.endpoint = URI.create(endpoint.endsWith("/") ? endpoint.substring(0, endpoint.length() - 1) : endpoint);
+        this.region = region;
+        this.bucket = bucket;
+        this.prefix = prefix;
+        this.accessKey = accessKey;
+        this.secretKey = secretKey;
+        this.pathStyle = pathStyle;
+        // S3 refuses parts under 5 MB, except for the last one
+        this.partSize = Math.max(partSize, 5 * 1024 * 1024);
+        this.parallelUploads = Math.max(1, parallelUploads);
+    }
+
+    @Override
+    public String describe() {
+        return "s3://" + bucket + "/" + prefix;
+    }
+
+    @Override
+    public Upload startUpload(String name) {
+        return new MultipartUpload(prefix + name);
+    }
+
+    @Override
+    public void download(String name, Path target) throws IOException {
+        Path tempFile = target.resolveSibling(target.getFileName() + ".download");
+        HttpResponse<Path> response = send("GET", prefix + name, Map.of(), null, HttpResponse.BodyHandlers.ofFile(tempFile));
+        if (response.statusCode() != 200) {
+            Files.deleteIfExists(tempFile);
+            throw new HttpStatusException("Downloading " + name, response.statusCode(), "");
+        }
+        Files.move(tempFile, target, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    @Override
+    public void delete(String name) throws IOException {
+        check(send("DELETE", prefix + name, Map.of(), null, HttpResponse.BodyHandlers.ofString()), "Deleting " + name);
+    }
+
+    @Override
+    public List<String> list() throws IOException {
+        List<String> names = new ArrayList<>();
+        String token = null;
+        do {
+            Map<String, String> query = new TreeMap<>();
+            query.put("list-type", "2");
+            query.put("prefix", prefix);
+            if (token != null) query.put("continuation-token", token);
+
+            String body = check(send("GET", "", query, null, HttpResponse.BodyHandlers.ofString()), "Listing").body();
+            Matcher keys = KEY.matcher(body);
+            while (keys.find()) {
+                names.add(unescapeXml(keys.group(1)).substring(prefix.length()));
+            }
+            Matcher next = CONTINUATION.matcher(body);
+            token = next.find() ? unescapeXml(next.group(1)) : null;
+        } while (token != null);
+        return names;
+    }
+
+    private class MultipartUpload extends OutputStream implements Upload {
+        private final String key;
+        private final Semaphore inFlight = new Semaphore(parallelUploads);
+        private final List<CompletableFuture<String>> parts = new ArrayList<>();
+        private byte[] buffer = new byte[partSize];
+        private int buffered;
+        private String uploadId;
+        private volatile boolean aborted;
+
+        MultipartUpload(String key) {
+            this.key = key;
+        }
+
+        @Override
+        public OutputStream getStream() {
+            return this;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                int copied = Math.min(len, buffer.length - buffered);
+                System.arraycopy(b, off, buffer, buffered, copied);
+                buffered += copied;
+                off += copied;
+                len -= copied;
+                if (buffered == buffer.length) {
+                    sendPart();
+                }
+            }
+        }
+
+        private void sendPart() throws IOException {
+            if (aborted) throw new IOException("Upload of " + key + " was aborted");
+            if (uploadId == null) {
+                String body = check(send("POST", key, Map.of("uploads", ""), null, HttpResponse.BodyHandlers.ofString()),
+                        "Starting the upload of " + key).body();
+                Matcher matcher = UPLOAD_ID.matcher(body);
+                if (!matcher.find()) throw new IOException("No upload id for " + key);
+                uploadId = matcher.group(1);
+            }
+
+            try {
+                inFlight.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Upload interrupted");
+            }
+            byte[] part = buffered == buffer.length ? buffer : Arrays.copyOf(buffer, buffered);
+            int partNumber = parts.size() + 1;
+            Map<String, String> query = Map.of("partNumber", Integer.toString(partNumber), "uploadId", uploadId);
+            parts.add(sendAsync("PUT", key, query, part, 1)
+                    .whenComplete((etag, error) -> inFlight.release()));
+            buffer = new byte[partSize];
+            buffered = 0;
+        }
+
+        @Override
+        public void complete() throws IOException {
+            if (uploadId == null) {
+                check(send("PUT", key, Map.of(), Arrays.copyOf(buffer, buffered), HttpResponse.BodyHandlers.ofString()),
+                        "Uploading " + key);
+                return;
+            }
+
+            try {
+                if (buffered > 0) sendPart();
+                StringBuilder xml = new StringBuilder("<CompleteMultipartUpload>");
+                for (int i = 0; i < parts.size(); i++) {
+                    xml.append("<Part><PartNumber>").append(i + 1).append("</PartNumber><ETag>")
+                            .append(parts.get(i).join()).append("</ETag></Part>");
+                }
+                xml.append("</CompleteMultipartUpload>");
+
+                HttpResponse<String> response = send("POST", key, Map.of("uploadId", uploadId),
+                        xml.toString().getBytes(StandardCharsets.UTF_8), HttpResponse.BodyHandlers.ofString());
+                // S3 can answer 200 and still report an error in the body
+                if (response.statusCode() != 200 || response.body().contains("<Error>")) {
+                    throw new IOException("Completing the upload of " + key + " failed: " + response.body());
+                }
+            } catch (CompletionException e) {
+                abort();
+                throw e.getCause() instanceof IOException io ? io : new IOException(e.getCause());
+            } catch (IOException e) {
+                abort();
+                throw e;
+            }
+        }
+
+        @Override
+        public void abort() {
+            aborted = true;
+            parts.forEach(part -> part.cancel(false));
+            if (uploadId == null) return;
+            try {
+                send("DELETE", key, Map.of("uploadId", uploadId), null, HttpResponse.BodyHandlers.discarding());
+            } catch (IOException ignored) {
+                // unfinished uploads also expire with the bucket's lifecycle rules
+            }
+        }
+    }
+
+    private CompletableFuture<String> sendAsync(String method, String key, Map<String, String> query, byte[] body, int attempt) {
+        HttpRequest request;
+        try {
+            request = sign(method, key, query, body).build();
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        return client.sendAsync(request, HttpResponse.BodyHandlers.ofString())
+                .thenCompose(response -> response.statusCode() == 200
+                        ? CompletableFuture.completedFuture(response.headers().firstValue("ETag").orElse(""))
+                        : CompletableFuture.<String>failedFuture(new HttpStatusException(method + " " + key, response.statusCode(), response.body())))
+                .exceptionallyCompose(error -> {
+                    Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+                    if (!isRetryable(cause) || attempt >= MAX_ATTEMPTS) {
+                        return CompletableFuture.failedFuture(cause);
+                    }
+                    Executor later = CompletableFuture.delayedExecutor(RETRY_DELAY_MILLIS * attempt, TimeUnit.MILLISECONDS);
+                    return CompletableFuture.supplyAsync(() -> null, later)
+                            .thenCompose(ignored -> sendAsync(method, key, query, body, attempt + 1));
+                });
+    }
+
+    /**
+     * Connection problems and {@link HttpStatusException#isRetryable() retryable} answers.
+     */
+    private static boolean isRetryable(Throwable error) {
+        if (error instanceof HttpStatusException status) return status.isRetryable();
+        return error instanceof IOException;
+    }
+
+    private <T> HttpResponse<T> send(String method, String key, Map<String, String> query, byte[] body,
+                                     HttpResponse.BodyHandler<T> handler) throws IOException {
+        try {
+            return client.send(sign(method, key, query, body).build(), handler);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Request interrupted");
+        }
+    }
+
+    private static <T> HttpResponse<T> check(HttpResponse<T> response, String action) throws IOException {
+        if (response.statusCode() / 100 != 2) {
+            throw new HttpStatusException(action, response.statusCode(), String.valueOf(response.body()));
+        }
+        return response;
+    }
+
+    private HttpRequest.Builder sign(String method, String key, Map<String, String> query, byte[] body) throws IOException {
+        String host = pathStyle ? endpoint.getAuthority() : bucket + "." + endpoint.getAuthority();
+        String path = (pathStyle ? "/" + bucket : "") + "/" + key;
+        String canonicalPath = encodePath(path);
+        String canonicalQuery = canonicalQuery(query);
+        String payloadHash = body == null ? EMPTY_HASH : HexFormat.of().formatHex(sha256(body));
+        String amzDate = ZonedDateTime.now(ZoneOffset.UTC).format(AMZ_DATE);
+
+        Map<String, String> headers = new TreeMap<>();
+        headers.put("host", host);
+        headers.put("x-amz-content-sha256", payloadHash);
+        headers.put("x-amz-date", amzDate);
+        String authorization = authorization(method, canonicalPath, canonicalQuery, headers, payloadHash, amzDate);
+
+        URI uri = URI.create(endpoint.getScheme() + "://" + host + canonicalPath + (canonicalQuery.isEmpty() ? "" : "?" + canonicalQuery));
+        return HttpRequest.newBuilder(uri)
+                .timeout(Duration.ofMinutes(5))
+                .header("x-amz-content-sha256", payloadHash)
+                .header("x-amz-date", amzDate)
+                .header("Authorization", authorization)
+                .method(method, body == null ? HttpRequest.BodyPublishers.noBody() : HttpRequest.BodyPublishers.ofByteArray(body));
+    }
+
+    /**
+     * The {@code Authorization} header of AWS Signature Version 4.
+     *
+     * @param headers every signed header, lower case names
+     */
+    String authorization(String method, String canonicalPath, String canonicalQuery, Map<String, String> headers,
+                         String payloadHash, String amzDate) throws IOException {
+        SortedMap<String, String> sortedHeaders = new TreeMap<>(headers);
+        StringBuilder canonicalHeaders = new StringBuilder();
+        sortedHeaders.forEach((name, value) -> canonicalHeaders.append(name).append(':').append(value.trim()).append('\n'));
+        String signedHeaders = String.join(";", sortedHeaders.keySet());
+
+        String canonicalRequest = method + "\n" + canonicalPath + "\n" + canonicalQuery + "\n"
+                + canonicalHeaders + "\n" + signedHeaders + "\n" + payloadHash;
+        String date = amzDate.substring(0, 8);
+        String scope = date + "/" + region + "/s3/aws4_request";
+        String stringToSign = "AWS4-HMAC-SHA256\n" + amzDate + "\n" + scope + "\n"
+                + HexFormat.of().formatHex(sha256(canonicalRequest.getBytes(StandardCharsets.UTF_8)));
+
+        byte[] signingKey = hmac(("AWS4" + secretKey).getBytes(StandardCharsets.UTF_8), date);
+        for (String part : new String[]{region, "s3", "aws4_request"}) {
+            signingKey = hmac(signingKey, part);
+        }
+        String signature = HexFormat.of().formatHex(hmac(signingKey, stringToSign));
+
+        return "AWS4-HMAC-SHA256 Credential=" + accessKey + "/" + scope
+                + ",SignedHeaders=" + signedHeaders + ",Signature=" + signature;
+    }
+
+    private static String canonicalQuery(Map<String, String> query) {
+        StringJoiner joiner = new StringJoiner("&");
+        new TreeMap<>(query).forEach((name, value) -> joiner.add(encode(name) + "=" + encode(value)));
+        return joiner.toString();
+    }
+
+    private static String encodePath(String path) {
+        StringJoiner joiner = new StringJoiner("/");
+        for (String segment : path.split("/", -1)) {
+            joiner.add(encode(segment));
+        }
+        return joiner.toString();
+    }
+
+    /**
+     * RFC 3986 encoding, which is what the signature expects ({@link URLEncoder} is for forms).
+     */
+    private static String encode(String value) {
+        return URLEncoder.encode(value, StandardCharsets.UTF_8)
+                .replace("+", "%20")
+                .replace("*", "%2A")
+                .replace("%7E", "~");
+    }
+
+    private static String unescapeXml(String value) {
+        return value.replace("&lt;", "<").replace("&gt;", ">").replace("&quot;", "\"")
+                .replace("&apos;", "'").replace("&amp;", "&");
+    }
+
+    private static byte[] sha256(byte[] data) throws IOException {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(data);
+        } catch (GeneralSecurityException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private static byte[] hmac(byte[] key, String data) throws IOException {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(key, "HmacSHA256"));
+            return mac.doFinal(data.getBytes(StandardCharsets.UTF_8));
+        } catch (GeneralSecurityException e) {
+            throw new IOException(e);
+        }
+    }
+}
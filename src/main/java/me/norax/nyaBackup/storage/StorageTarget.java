@@ -0,0 +1,39 @@
+package me.norax.nyaBackup.storage;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * Somewhere other than the server's disk to keep backups, by file name.
+ */
+public interface StorageTarget {
+    /**
+     * @return where the backups go, for the logs
+     */
+    String describe();
+
+    /**
+     * Starts storing {@code name}. What is written to the upload's stream is sent
+     * while it is written, nothing is visible until {@link Upload#complete()}.
+     */
+    Upload startUpload(String name) throws IOException;
+
+    void download(String name, Path target) throws IOException;
+
+    void delete(String name) throws IOException;
+
+    List<String> list() throws IOException;
+
+    interface Upload {
+        OutputStream getStream();
+
+        /**
+         * Waits for everything written so far to be stored and makes it visible.
+         */
+        void complete() throws IOException;
+
+        void abort();
+    }
+}
@@ -0,0 +1,210 @@
+package me.norax.nyaBackup;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Backs up a generated server with every compression method, breaks the world,
+ * restores the backup and checks that every file came back byte for byte.
+ * The peak heap of both steps must stay under {@code -Dnyabackup.maxHeapMb} (512).
+ * <p>
+ * With {@code -Dnyabackup.perf=true} (the {@code perf} profile, which the build workflow uses),
+ * wall time, peak heap and main thread time are also compared with {@code baselines.properties}:
+ * a run more than {@code -Dnyabackup.tolerance} (1.5) times slower or bigger than its baseline,
+ * or without a baseline, fails. Timings depend on the machine, so this is left out of a plain
+ * {@code mvn test}. {@code -Dnyabackup.world}
+ * picks the world size (small, medium, large) and {@code -Dnyabackup.updateBaselines=true}
+ * writes the measured values as the new baselines.
+ */
+public class BackupRestoreTest {
+    private static final String WORLD = System.getProperty("nyabackup.world", "small");
+    private static final double TOLERANCE = Double.parseDouble(System.getProperty("nyabackup.tolerance", "1.5"));
+    private static final boolean UPDATE_BASELINES = Boolean.getBoolean("nyabackup.updateBaselines");
+    private static final boolean PERF = Boolean.getBoolean("nyabackup.perf");
+    private static final long MAX_HEAP_MB = Long.getLong("nyabackup.maxHeapMb", 512);
+    // below these the noise of a shared CI machine is larger than any regression
+    private static final long MIN_MILLIS = 250;
+    private static final long MIN_HEAP_MB = 64;
+
+    @TempDir
+    Path serverDir;
+
+    @ParameterizedTest
+    @ValueSource(strings = {"zip", "store", "7z", "zstd", "dedup"})
+    public void backupAndRestore(String method) throws Exception {
+        SyntheticWorld.named(WORLD).generate(serverDir, 42);
+        Map<String, String> expected = hashFiles();
+
+        Map<String, Long> measured = new LinkedHashMap<>();
+        try (TestServer server = new TestServer(serverDir, Map.of("compression_method", method))) {
+            BackupManager backupManager = server.getPlugin().getBackupManager();
+
+            resetPeakHeap();
+            long start = System.nanoTime();
+            BackupJob job = server.backup("");
+            measured.put("backupMillis", (System.nanoTime() - start) / 1_000_000);
+            measured.put("backupHeapMb", peakHeapMb());
+            measured.put("mainThreadMillis", server.getMainThreadNanos() / 1_000_000);
+            assertEquals(BackupJob.Phase.DONE, job.getPhase());
+
+            breakWorld();
+
+            BackupCatalog.Entry backup = backupManager.getCatalog().getEntries().getLast();
+            resetPeakHeap();
+            start = System.nanoTime();
+            backupManager.loadBackup(serverDir.resolve("plugins/NyaBackup/backups").resolve(backup.name()));
+            measured.put("restoreMillis", (System.nanoTime() - start) / 1_000_000);
+            measured.put("restoreHeapMb", peakHeapMb());
+        }
+
+        Map<String, String> restored = hashFiles();
+        expected.forEach((path, hash) -> assertEquals(hash, restored.get(path), path + " was not restored"));
+
+        for (String metric : List.of("backupHeapMb", "restoreHeapMb")) {
+            assertTrue(measured.get(metric) <= MAX_HEAP_MB, method + " " + metric + " is " + measured.get(metric)
+                    + ", more than " + MAX_HEAP_MB);
+        }
+        if (PERF || UPDATE_BASELINES) {
+            checkBaselines(method, measured);
+        }
+    }
+
+    /**
+     * Restores the nether while the server keeps running: it comes back as it was
+     * backed up and loaded again, while the change made to the overworld stays.
+     */
+    @Test
+    public void hotRestoreOfOneWorld() throws Exception {
+        SyntheticWorld.named(WORLD).generate(serverDir, 42);
+        Map<String, String> expected = hashFiles();
+
+        try (TestServer server = new TestServer(serverDir, Map.of("compression_method", "zip"))) {
+            BackupManager backupManager = server.getPlugin().getBackupManager();
+            server.backup("");
+
+            try (Stream<Path> files = Files.walk(serverDir.resolve("world_nether"))) {
+                for (Path file : files.filter(path -> path.toString().endsWith(".mca")).toList()) {
+                    Files.delete(file);
+                }
+            }
+            Files.writeString(serverDir.resolve("world_nether/griefed.txt"), "griefed");
+            Files.writeString(serverDir.resolve("world/level.dat"), "changed");
+
+            BackupCatalog.Entry backup = backupManager.getCatalog().getEntries().getLast();
+            int restored = backupManager.hotRestoreWorld(serverDir.resolve("plugins/NyaBackup/backups").resolve(backup.name()), "world_nether");
+
+            assertTrue(restored > 0);
+            assertNotNull(server.getPlugin().getServer().getWorld("world_nether"), "world_nether was not loaded again");
+        }
+
+        Map<String, String> restored = hashFiles();
+        expected.forEach((path, hash) -> {
+            if (path.startsWith("world_nether/")) assertEquals(hash, restored.get(path), path + " was not restored");
+        });
+        assertFalse(Files.exists(serverDir.resolve("world_nether/griefed.txt")));
+        assertEquals("changed", Files.readString(serverDir.resolve("world/level.dat")));
+        assertFalse(Files.exists(serverDir.resolve("world_nether.nyabackup-old")));
+    }
+
+    /**
+     * The world files the way a crash or a griefer leaves them: regions gone,
+     * player files emptied, config rewritten.
+     */
+    private void breakWorld() throws IOException {
+        try (Stream<Path> files = Files.walk(serverDir.resolve("world"))) {
+            for (Path file : files.filter(Files::isRegularFile).toList()) {
+                String name = file.getFileName().toString();
+                if (name.endsWith(".mca")) {
+                    Files.delete(file);
+                } else if (name.endsWith(".json")) {
+                    Files.write(file, new byte[0]);
+                }
+            }
+        }
+        Files.writeString(serverDir.resolve("server.properties"), "broken");
+    }
+
+    /**
+     * @return the hash of every file a full restore puts back, by relative path
+     */
+    private Map<String, String> hashFiles() throws IOException, NoSuchAlgorithmException {
+        Map<String, String> hashes = new TreeMap<>();
+        Path dataFolder = serverDir.resolve("plugins/NyaBackup");
+        try (Stream<Path> files = Files.walk(serverDir)) {
+            for (Path file : files.filter(Files::isRegularFile).filter(file -> !file.startsWith(dataFolder)).toList()) {
+                String relativePath = serverDir.relativize(file).toString().replace('\\', '/');
+                if (!BackupManager.shouldRestore(relativePath)) continue;
+
+                MessageDigest digest = MessageDigest.getInstance("SHA-256");
+                hashes.put(relativePath, HexFormat.of().formatHex(digest.digest(Files.readAllBytes(file))));
+            }
+        }
+        return hashes;
+    }
+
+    private static void resetPeakHeap() {
+        System.gc();
+        heapPools().forEach(MemoryPoolMXBean::resetPeakUsage);
+    }
+
+    private static long peakHeapMb() {
+        return heapPools().mapToLong(pool -> pool.getPeakUsage().getUsed()).sum() / (1024 * 1024);
+    }
+
+    private static Stream<MemoryPoolMXBean> heapPools() {
+        return ManagementFactory.getMemoryPoolMXBeans().stream().filter(pool -> pool.getType() == MemoryType.HEAP);
+    }
+
+    private static synchronized void checkBaselines(String method, Map<String, Long> measured) throws IOException {
+        // updates go to the source folder, merged with what the other methods wrote there
+        Path file = Path.of(System.getProperty("basedir", "."), "src/test/resources/me/norax/nyaBackup/baselines.properties");
+        Properties baselines = new Properties();
+        try (InputStream in = UPDATE_BASELINES && Files.exists(file) ? Files.newInputStream(file)
+                : BackupRestoreTest.class.getResourceAsStream("baselines.properties")) {
+            if (in != null) baselines.load(in);
+        }
+
+        List<String> regressions = new ArrayList<>();
+        measured.forEach((metric, value) -> {
+            String key = method + "." + WORLD + "." + metric;
+            String baseline = baselines.getProperty(key);
+            if (UPDATE_BASELINES) {
+                baselines.setProperty(key, String.valueOf(value));
+                return;
+            }
+            if (baseline == null) {
+                regressions.add(key + " is " + value + " but has no baseline, record one with -Dnyabackup.updateBaselines=true");
+                return;
+            }
+            long limit = (long) (Math.max(Long.parseLong(baseline), metric.endsWith("Mb") ? MIN_HEAP_MB : MIN_MILLIS) * TOLERANCE);
+            if (value > limit) {
+                regressions.add(key + " is " + value + ", the baseline is " + baseline);
+            }
+        });
+
+        if (UPDATE_BASELINES) {
+            Files.createDirectories(file.getParent());
+            try (OutputStream out = Files.newOutputStream(file)) {
+                baselines.store(out, "measured by BackupRestoreTest, see its javadoc");
+            }
+        }
+        assertTrue(regressions.isEmpty(), String.join("\n", regressions));
+    }
+}
@@ -0,0 +1,51 @@
+package me.norax.nyaBackup;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks which backup entries a partial restore brings back.
+ */
+public class RestoreSelectionTest {
+    @Test
+    public void worldOnlyTakesItsOwnFolder() {
+        RestoreSelection selection = RestoreSelection.world("world");
+
+        assertTrue(selection.filter().test("world/level.dat"));
+        assertTrue(selection.filter().test("world/region/r.0.0.mca"));
+        assertFalse(selection.filter().test("world/session.lock"), "the lock of the running world was restored");
+        assertFalse(selection.filter().test("world_nether/level.dat"), "a world with the same prefix was restored");
+        assertFalse(selection.filter().test("server.properties"));
+    }
+
+    @Test
+    public void regionsIncludeBothCornersInAnyOrder() {
+        RestoreSelection selection = RestoreSelection.regions("world", 1, 1, -1, -2);
+
+        assertTrue(selection.filter().test("world/region/r.-1.-2.mca"));
+        assertTrue(selection.filter().test("world/region/r.1.1.mca"));
+        assertTrue(selection.filter().test("world/entities/r.0.0.mca"));
+        assertTrue(selection.filter().test("world/poi/r.0.-1.mca"));
+        assertTrue(selection.filter().test("world/DIM-1/region/r.0.0.mca"));
+        assertFalse(selection.filter().test("world/region/r.2.0.mca"));
+        assertFalse(selection.filter().test("world/region/r.0.-3.mca"));
+        assertFalse(selection.filter().test("world/level.dat"));
+        assertFalse(selection.filter().test("world_nether/region/r.0.0.mca"));
+    }
+
+    @Test
+    public void playerOnlyTakesTheirFiles() {
+        UUID uuid = UUID.fromString("069a79f4-44e9-4726-a5be-fca90e38aaf5");
+        RestoreSelection selection = RestoreSelection.player("world", uuid);
+
+        assertTrue(selection.filter().test("world/playerdata/" + uuid + ".dat"));
+        assertTrue(selection.filter().test("world/stats/" + uuid + ".json"));
+        assertTrue(selection.filter().test("world/advancements/" + uuid + ".json"));
+        assertFalse(selection.filter().test("world/playerdata/" + UUID.randomUUID() + ".dat"));
+        assertFalse(selection.filter().test("world/playerdata/" + uuid + ".dat_old"));
+        assertEquals(uuid, selection.player());
+    }
+}
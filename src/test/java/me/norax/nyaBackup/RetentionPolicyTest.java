@@ -0,0 +1,99 @@
+package me.norax.nyaBackup;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks which backups the retention tiers and {@code retention.max_size} keep,
+ * since everything else gets deleted.
+ */
+public class RetentionPolicyTest {
+    private static final ZoneId BERLIN = ZoneId.of("Europe/Berlin");
+
+    @Test
+    public void newestBackupIsAlwaysKept() {
+        List<BackupCatalog.Entry> entries = List.of(
+                backup("a", "2024-05-01T10:00:00Z"),
+                backup("b", "2024-05-02T10:00:00Z"));
+
+        assertEquals(Set.of("b"), policy(0, 0, 0, 0, 0, ZoneOffset.UTC).selectKept(entries));
+        assertEquals(Set.of("b"), policy(1, 0, 0, 0, 0, ZoneOffset.UTC).selectKept(entries));
+        assertEquals(Set.of(), policy(1, 0, 0, 0, 0, ZoneOffset.UTC).selectKept(List.of()));
+    }
+
+    @Test
+    public void tiersKeepTheNewestOfEachPeriodAndOverlap() {
+        // every 6 hours over three days, the newest backup of the newest hour is also the newest of its day and week
+        List<BackupCatalog.Entry> entries = new ArrayList<>();
+        ZonedDateTime time = ZonedDateTime.parse("2024-05-01T00:00:00Z");
+        for (int i = 0; i < 12; i++) {
+            entries.add(backup("b" + i, time.plusHours(6L * i).toString()));
+        }
+
+        Set<String> kept = policy(0, 2, 2, 1, 0, ZoneOffset.UTC).selectKept(entries);
+        // hourly: b11 and b10, daily: b11 and b7 (the newest of May 2), weekly: b11
+        assertEquals(Set.of("b11", "b10", "b7"), kept);
+    }
+
+    @Test
+    public void weeksFollowIsoWeeksAcrossTheNewYear() {
+        // 2024-12-29 is a sunday in week 52 of 2024, 2024-12-30 already is in week 1 of 2025
+        List<BackupCatalog.Entry> entries = List.of(
+                backup("sunday", "2024-12-29T12:00:00Z"),
+                backup("monday", "2024-12-30T12:00:00Z"),
+                backup("thursday", "2025-01-02T12:00:00Z"));
+
+        assertEquals(Set.of("thursday", "sunday"), policy(0, 0, 0, 2, 0, ZoneOffset.UTC).selectKept(entries));
+    }
+
+    @Test
+    public void periodsFollowTheLocalClockAcrossDst() {
+        // the clocks go back at 03:00 CEST on 2024-10-27, 02:xx CEST and 02:xx CET are different hours
+        List<BackupCatalog.Entry> fallBack = List.of(
+                backup("cest", "2024-10-27T00:30:00Z"),
+                backup("cet", "2024-10-27T01:10:00Z"),
+                backup("cet-later", "2024-10-27T01:40:00Z"));
+        assertEquals(Set.of("cet-later", "cest"), policy(0, 2, 0, 0, 0, BERLIN).selectKept(fallBack));
+
+        // 23:30 and 00:30 in Berlin on the night the clocks go forward are two days, in UTC both are 2024-03-30
+        List<BackupCatalog.Entry> springForward = List.of(
+                backup("saturday", "2024-03-30T22:30:00Z"),
+                backup("sunday", "2024-03-30T23:30:00Z"));
+        assertEquals(Set.of("sunday", "saturday"), policy(0, 0, 2, 0, 0, BERLIN).selectKept(springForward));
+        assertEquals(Set.of("sunday"), policy(0, 0, 2, 0, 0, ZoneOffset.UTC).selectKept(springForward));
+    }
+
+    @Test
+    public void maxSizeDeletesTheOldestFirstButNeverTheNewest() {
+        List<BackupCatalog.Entry> entries = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            entries.add(backup("b" + i, "2024-05-0" + (i + 1) + "T10:00:00Z"));
+        }
+
+        assertEquals(List.of("b0", "b1", "b2"), sized(250).selectOverSize(entries, 500));
+        assertEquals(List.of("b0", "b1", "b2", "b3"), sized(50).selectOverSize(entries, 500));
+        assertEquals(List.of(), sized(500).selectOverSize(entries, 500));
+        assertEquals(List.of(), sized(0).selectOverSize(entries, 500));
+    }
+
+    private static RetentionPolicy policy(int max, int hourly, int daily, int weekly, int monthly, ZoneId zone) {
+        return new RetentionPolicy(max, hourly, daily, weekly, monthly, 0, zone);
+    }
+
+    private static RetentionPolicy sized(long maxBytes) {
+        return new RetentionPolicy(0, 0, 0, 0, 0, maxBytes, ZoneOffset.UTC);
+    }
+
+    private static BackupCatalog.Entry backup(String name, String created) {
+        return new BackupCatalog.Entry(name, ZonedDateTime.parse(created).toInstant().toEpochMilli(),
+                100, 200, 1, 0, "zip", null, null);
+    }
+}
@@ -0,0 +1,164 @@
+package me.norax.nyaBackup;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.UUID;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes a server folder that looks like a real one to the backup code: an
+ * overworld, nether and end with region files holding zlib compressed chunks,
+ * player data, and many small plugin files. The same seed always gives the same bytes.
+ *
+ * @param regions         region files of the overworld, the nether gets a quarter and the end an eighth
+ * @param chunksPerRegion chunks in each region file (at most 1024)
+ * @param players         players with a {@code .dat}, stats and advancements file each
+ * @param pluginFiles     small files spread over 20 plugin folders
+ */
+public record SyntheticWorld(int regions, int chunksPerRegion, int players, int pluginFiles) {
+    public static final SyntheticWorld SMALL = new SyntheticWorld(8, 256, 20, 500);
+    public static final SyntheticWorld MEDIUM = new SyntheticWorld(48, 512, 150, 5_000);
+    public static final SyntheticWorld LARGE = new SyntheticWorld(200, 1024, 500, 20_000);
+
+    private static final int SECTOR = 4096;
+
+    public static SyntheticWorld named(String name) {
+        return switch (name.toLowerCase()) {
+            case "small" -> SMALL;
+            case "medium" -> MEDIUM;
+            case "large" -> LARGE;
+            default -> throw new IllegalArgumentException("Unknown world size " + name);
+        };
+    }
+
+    /**
+     * @return how many bytes were written
+     */
+    public long generate(Path serverDir, long seed) throws IOException {
+        Random random = new Random(seed);
+        long written = 0;
+
+        written += writeText(serverDir.resolve("server.properties"), random, 1_500);
+        written += writeText(serverDir.resolve("bukkit.yml"), random, 1_000);
+        written += writeText(serverDir.resolve("eula.txt"), random, 200);
+        written += writeText(serverDir.resolve("logs/latest.log"), random, 200_000);
+
+        written += writeWorld(serverDir.resolve("world"), ".", regions, random);
+        written += writeWorld(serverDir.resolve("world_nether"), "DIM-1", Math.max(1, regions / 4), random);
+        written += writeWorld(serverDir.resolve("world_the_end"), "DIM1", Math.max(1, regions / 8), random);
+
+        for (int i = 0; i < players; i++) {
+            UUID uuid = new UUID(random.nextLong(), random.nextLong());
+            Path world = serverDir.resolve("world");
+            written += writeGzip(world.resolve("playerdata/" + uuid + ".dat"), random, 4_000 + random.nextInt(12_000));
+            written += writeText(world.resolve("stats/" + uuid + ".json"), random, 500 + random.nextInt(3_000));
+            written += writeText(world.resolve("advancements/" + uuid + ".json"), random, 500 + random.nextInt(5_000));
+        }
+
+        for (int i = 0; i < pluginFiles; i++) {
+            Path file = serverDir.resolve("plugins/Plugin" + (i % 20) + "/data/" + (i / 20 % 50) + "/" + i + ".yml");
+            written += writeText(file, random, 100 + random.nextInt(2_000));
+        }
+        return written;
+    }
+
+    private long writeWorld(Path worldDir, String dimension, int regionCount, Random random) throws IOException {
+        long written = writeGzip(worldDir.resolve("level.dat"), random, 2_000);
+        Path regionDir = worldDir.resolve(dimension).resolve("region");
+        int side = (int) Math.ceil(Math.sqrt(regionCount));
+        for (int i = 0; i < regionCount; i++) {
+            int x = i % side - side / 2;
+            int z = i / side - side / 2;
+            written += writeRegion(regionDir.resolve("r." + x + "." + z + ".mca"), random);
+        }
+        return written;
+    }
+
+    /**
+     * The Anvil layout: a table of chunk offsets, a table of timestamps, then
+     * every chunk as length, compression type (2 = zlib) and data, padded to 4 KiB sectors.
+     */
+    private long writeRegion(Path file, Random random) throws IOException {
+        Files.createDirectories(file.getParent());
+        int chunks = Math.min(chunksPerRegion, 1024);
+        ByteBuffer header = ByteBuffer.allocate(2 * SECTOR);
+        Deflater deflater = new Deflater();
+        byte[] compressed = new byte[64 * 1024];
+
+        try (OutputStream out = Files.newOutputStream(file)) {
+            out.write(new byte[2 * SECTOR]);
+            int sector = 2;
+            for (int slot = 0; slot < chunks; slot++) {
+                deflater.reset();
+                deflater.setInput(chunkData(random));
+                deflater.finish();
+                int length = deflater.deflate(compressed);
+
+                int sectors = (length + 5 + SECTOR - 1) / SECTOR;
+                header.putInt(slot * 4, sector << 8 | sectors);
+                header.putInt(SECTOR + slot * 4, 1_700_000_000 + random.nextInt(1_000_000));
+
+                ByteBuffer chunk = ByteBuffer.allocate(sectors * SECTOR);
+                chunk.putInt(length + 1).put((byte) 2).put(compressed, 0, length);
+                out.write(chunk.array());
+                sector += sectors;
+            }
+        } finally {
+            deflater.end();
+        }
+
+        try (SeekableByteChannel channel = Files.newByteChannel(file, StandardOpenOption.WRITE)) {
+            channel.write(header);
+        }
+        return Files.size(file);
+    }
+
+    /**
+     * Block palettes compress about as well as real chunk NBT: long runs of a
+     * few values with some noise.
+     */
+    private static byte[] chunkData(Random random) {
+        byte[] data = new byte[8_000 + random.nextInt(16_000)];
+        int palette = 2 + random.nextInt(14);
+        int i = 0;
+        while (i < data.length) {
+            byte value = (byte) random.nextInt(palette);
+            int run = 1 + random.nextInt(random.nextInt(10) == 0 ? 4 : 64);
+            for (int end = Math.min(data.length, i + run); i < end; i++) {
+                data[i] = value;
+            }
+        }
+        return data;
+    }
+
+    private static long writeText(Path file, Random random, int size) throws IOException {
+        String[] words = {"name", "enabled", "true", "false", "world", "spawn", "player", "count", "0", "100", "- item", "  "};
+        StringBuilder text = new StringBuilder(size + 16);
+        while (text.length() < size) {
+            text.append(words[random.nextInt(words.length)]).append(random.nextInt(8) == 0 ? "\n" : ": ");
+        }
+        byte[] bytes = text.toString().getBytes(StandardCharsets.UTF_8);
+        Files.createDirectories(file.getParent());
+        Files.write(file, bytes);
+        return bytes.length;
+    }
+
+    private static long writeGzip(Path file, Random random, int size) throws IOException {
+        Files.createDirectories(file.getParent());
+        try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(file))) {
+            out.write(chunkData(random), 0, Math.min(size, 8_000));
+            byte[] noise = new byte[Math.max(0, size - 8_000)];
+            random.nextBytes(noise);
+            out.write(noise);
+        }
+        return Files.size(file);
+    }
+}
@@ -0,0 +1,256 @@
+package me.norax.nyaBackup;
+
+import org.bukkit.Chunk;
+import org.bukkit.Server;
+import org.bukkit.World;
+import org.bukkit.WorldCreator;
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.bukkit.plugin.Plugin;
+import org.bukkit.plugin.PluginDescriptionFile;
+import org.bukkit.plugin.PluginManager;
+import org.bukkit.scheduler.BukkitScheduler;
+import org.bukkit.scheduler.BukkitTask;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/**
+ * Runs the plugin on a folder instead of a Paper server, for the tests and benchmarks.
+ * <p>
+ * {@link NyaBackup} gets a Bukkit plugin reading {@code plugins/NyaBackup/config.yml}
+ * in place of {@link NyaBackupPlugin}. The server is a proxy answering only what the plugin asks for: every folder
+ * with a {@code level.dat} is a world, main thread tasks run one after another
+ * on a "Server thread" (and the time they take is counted), async tasks on a
+ * thread pool, and repeating or delayed tasks never fire. Unloaded worlds are
+ * hidden until they are created again.
+ */
+public final class TestServer implements AutoCloseable {
+    private final Path serverDir;
+    private final Path dataFolder;
+    private final Server server;
+    private final NyaBackup plugin;
+    private final PluginDescriptionFile description = new PluginDescriptionFile("NyaBackup", "test", NyaBackupPlugin.class.getName());
+    private YamlConfiguration config;
+    private final Logger logger = Logger.getLogger("TestServer");
+    private final ExecutorService mainThread = Executors.newSingleThreadExecutor(task -> new Thread(task, "Server thread"));
+    private final ExecutorService async = Executors.newCachedThreadPool();
+    private final AtomicLong mainThreadNanos = new AtomicLong();
+    private final Map<Path, World> worlds = new HashMap<>();
+    private final Set<String> unloaded = new HashSet<>();
+
+    /**
+     * @param config values replacing the defaults of {@code config.yml}, eg {@code "compression_method" -> "zstd"}
+     */
+    public TestServer(Path serverDir, Map<String, Object> config) throws IOException {
+        this.serverDir = serverDir;
+        Path dataFolder = serverDir.resolve("plugins/NyaBackup");
+        Files.createDirectories(dataFolder);
+        writeConfig(dataFolder.resolve("config.yml"), config);
+
+        this.dataFolder = dataFolder;
+        this.server = proxy(Server.class, this::server);
+        this.plugin = new NyaBackup(proxy(Plugin.class, this::bukkitPlugin));
+        try {
+            plugin.enable();
+        } catch (Exception e) {
+            throw new IOException("Failed to enable the plugin", e);
+        }
+    }
+
+    public NyaBackup getPlugin() {
+        return plugin;
+    }
+
+    public Path getServerDir() {
+        return serverDir;
+    }
+
+    /**
+     * @return how long main thread tasks took since the server started
+     */
+    public long getMainThreadNanos() {
+        return mainThreadNanos.get();
+    }
+
+    /**
+     * Runs a manual backup and waits for it.
+     */
+    public BackupJob backup(String name) {
+        return plugin.getBackupManager().createBackup(name, true).getCompletion().join();
+    }
+
+    @Override
+    public void close() {
+        plugin.disable();
+        mainThread.shutdown();
+        async.shutdown();
+    }
+
+    private static void writeConfig(Path configFile, Map<String, Object> values) throws IOException {
+        YamlConfiguration config;
+        try (Reader reader = new InputStreamReader(
+                Objects.requireNonNull(NyaBackup.class.getResourceAsStream("/config.yml")), StandardCharsets.UTF_8)) {
+            config = YamlConfiguration.loadConfiguration(reader);
+        }
+        values.forEach(config::set);
+        config.save(configFile.toFile());
+    }
+
+    private Object bukkitPlugin(Method method, Object[] args) {
+        return switch (method.getName()) {
+            case "getServer" -> server;
+            case "getDataFolder" -> dataFolder.toFile();
+            case "getConfig" -> {
+                if (config == null) reloadConfig();
+                yield config;
+            }
+            case "reloadConfig" -> reloadConfig();
+            case "getDescription" -> description;
+            case "getLogger" -> logger;
+            case "getName" -> description.getName();
+            case "isEnabled" -> true;
+            // config.yml was written by the constructor
+            default -> defaultValue(method);
+        };
+    }
+
+    private Void reloadConfig() {
+        config = YamlConfiguration.loadConfiguration(dataFolder.resolve("config.yml").toFile());
+        return null;
+    }
+
+    private Object server(Method method, Object[] args) throws IOException {
+        return switch (method.getName()) {
+            case "getWorldContainer" -> serverDir.toFile();
+            case "getWorlds" -> findWorlds();
+            case "getWorld" -> findWorld((String) args[0]);
+            case "getOnlinePlayers" -> List.of();
+            case "getScheduler" -> proxy(BukkitScheduler.class, this::scheduler);
+            case "getPluginManager" -> proxy(PluginManager.class, (m, a) -> defaultValue(m));
+            case "getLogger" -> logger;
+            case "getTPS" -> new double[]{20, 20, 20};
+            case "getName", "getVersion", "getBukkitVersion" -> "TestServer";
+            case "isPrimaryThread" -> Thread.currentThread().getName().equals("Server thread");
+            case "unloadWorld" -> setLoaded(((World) args[0]).getName(), false);
+            case "createWorld" -> {
+                String name = ((WorldCreator) args[0]).name();
+                setLoaded(name, true);
+                yield findWorld(name);
+            }
+            default -> defaultValue(method);
+        };
+    }
+
+    private Object scheduler(Method method, Object[] args) {
+        Runnable task = Arrays.stream(args).filter(Runnable.class::isInstance).map(Runnable.class::cast).findFirst().orElse(null);
+        switch (method.getName()) {
+            case "runTask" -> mainThread.execute(() -> {
+                long start = System.nanoTime();
+                try {
+                    task.run();
+                } finally {
+                    mainThreadNanos.addAndGet(System.nanoTime() - start);
+                }
+            });
+            case "runTaskAsynchronously" -> async.execute(task);
+            case "callSyncMethod" -> {
+                Callable<?> callable = (Callable<?>) args[1];
+                return mainThread.submit(() -> {
+                    long start = System.nanoTime();
+                    try {
+                        return callable.call();
+                    } finally {
+                        mainThreadNanos.addAndGet(System.nanoTime() - start);
+                    }
+                });
+            }
+            default -> {
+                if (method.getReturnType() != BukkitTask.class) return defaultValue(method);
+            }
+        }
+        return proxy(BukkitTask.class, (m, a) -> defaultValue(m));
+    }
+
+    private synchronized List<World> findWorlds() throws IOException {
+        try (Stream<Path> dirs = Files.list(serverDir)) {
+            return dirs.filter(dir -> Files.exists(dir.resolve("level.dat")))
+                    .filter(dir -> !unloaded.contains(dir.getFileName().toString()))
+                    .sorted()
+                    .map(dir -> worlds.computeIfAbsent(dir, this::newWorld))
+                    .toList();
+        }
+    }
+
+    private World findWorld(String name) throws IOException {
+        return findWorlds().stream()
+                .filter(world -> world.getName().equals(name))
+                .findFirst()
+                .orElse(null);
+    }
+
+    private synchronized boolean setLoaded(String name, boolean loaded) {
+        worlds.keySet().removeIf(folder -> folder.getFileName().toString().equals(name));
+        return loaded ? unloaded.remove(name) : unloaded.add(name);
+    }
+
+    private World newWorld(Path folder) {
+        String name = folder.getFileName().toString();
+        boolean[] autoSave = {true};
+        return proxy(World.class, (method, args) -> switch (method.getName()) {
+            case "getName" -> name;
+            case "getWorldFolder" -> folder.toFile();
+            case "getUID" -> UUID.nameUUIDFromBytes(name.getBytes(StandardCharsets.UTF_8));
+            case "getPlayers" -> List.of();
+            case "getLoadedChunks" -> new Chunk[0];
+            case "isAutoSave" -> autoSave[0];
+            case "setAutoSave" -> {
+                autoSave[0] = (boolean) args[0];
+                yield null;
+            }
+            default -> defaultValue(method);
+        });
+    }
+
+    private static Object defaultValue(Method method) {
+        Class<?> type = method.getReturnType();
+        if (type == boolean.class) return false;
+        if (type == int.class) return 0;
+        if (type == long.class) return 0L;
+        if (type == double.class) return 0.0;
+        if (type == float.class) return 0f;
+        return null;
+    }
+
+    private interface Handler {
+        Object handle(Method method, Object[] args) throws Throwable;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy(Class<T> type, Handler handler) {
+        InvocationHandler invocationHandler = (proxy, method, args) -> {
+            if (method.getDeclaringClass() == Object.class) {
+                return switch (method.getName()) {
+                    case "equals" -> proxy == args[0];
+                    case "hashCode" -> System.identityHashCode(proxy);
+                    default -> type.getSimpleName() + "@TestServer";
+                };
+            }
+            return handler.handle(method, args == null ? new Object[0] : args);
+        };
+        return (T) Proxy.newProxyInstance(TestServer.class.getClassLoader(), new Class<?>[]{type}, invocationHandler);
+    }
+}
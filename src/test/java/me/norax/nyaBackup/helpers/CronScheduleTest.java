@@ -0,0 +1,70 @@
+package me.norax.nyaBackup.helpers;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.ZonedDateTime;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks when cron schedules fire next, around month ends, leap days and DST.
+ */
+public class CronScheduleTest {
+    @Test
+    public void nextIsStrictlyAfter() {
+        CronSchedule schedule = new CronSchedule("*/15 * * * *");
+
+        assertEquals(time("2024-05-01T10:30:00Z"), schedule.next(time("2024-05-01T10:15:00Z")));
+        assertEquals(time("2024-05-01T10:15:00Z"), schedule.next(time("2024-05-01T10:14:59Z")));
+    }
+
+    @Test
+    public void skipsMonthsWithoutTheDay() {
+        CronSchedule schedule = new CronSchedule("0 0 31 * *");
+
+        assertEquals(time("2024-03-31T00:00:00Z"), schedule.next(time("2024-01-31T00:00:00Z")));
+        assertEquals(time("2024-05-31T00:00:00Z"), schedule.next(time("2024-03-31T00:00:00Z")));
+        assertEquals(time("2025-01-31T00:00:00Z"), schedule.next(time("2024-12-31T00:00:00Z")));
+    }
+
+    @Test
+    public void crossesMonthAndYearEnds() {
+        assertEquals(time("2025-01-01T02:30:00Z"), new CronSchedule("30 2 1 * *").next(time("2024-12-15T12:00:00Z")));
+        assertEquals(time("2024-03-01T00:00:00Z"), new CronSchedule("0 0 * * *").next(time("2024-02-29T23:59:00Z")));
+        assertEquals(time("2028-02-29T12:00:00Z"), new CronSchedule("0 12 29 2 *").next(time("2024-03-01T00:00:00Z")));
+    }
+
+    @Test
+    public void dayOfMonthOrDayOfWeek() {
+        // both restricted: the 13th or any friday, whichever comes first
+        CronSchedule schedule = new CronSchedule("0 0 13 * 5");
+
+        assertEquals(time("2024-09-06T00:00:00Z"), schedule.next(time("2024-09-01T00:00:00Z")));
+        assertEquals(time("2024-09-13T00:00:00Z"), schedule.next(time("2024-09-06T00:00:00Z")));
+        // 7 is sunday too
+        assertEquals(time("2024-09-08T00:00:00Z"), new CronSchedule("0 0 * * 7").next(time("2024-09-06T00:00:00Z")));
+    }
+
+    @Test
+    public void firesOnceWhenTheClocksGoBack() {
+        // in Berlin 02:00 to 03:00 happens twice on 2024-10-27
+        CronSchedule schedule = new CronSchedule("30 2 * * *");
+        ZonedDateTime first = schedule.next(ZonedDateTime.parse("2024-10-27T00:00:00+02:00[Europe/Berlin]"));
+
+        assertEquals(ZonedDateTime.parse("2024-10-27T02:30:00+02:00[Europe/Berlin]"), first);
+        assertEquals(ZonedDateTime.parse("2024-10-28T02:30:00+01:00[Europe/Berlin]"), schedule.next(first));
+    }
+
+    @Test
+    public void rejectsInvalidExpressions() {
+        assertThrows(IllegalArgumentException.class, () -> new CronSchedule("0 0 * *"));
+        assertThrows(IllegalArgumentException.class, () -> new CronSchedule("60 * * * *"));
+        assertThrows(IllegalArgumentException.class, () -> new CronSchedule("0 0 0 * *"));
+        assertThrows(IllegalArgumentException.class, () -> new CronSchedule("0 5-1 * * *"));
+        assertThrows(IllegalArgumentException.class, () -> new CronSchedule("*/0 * * * *"));
+    }
+
+    private static ZonedDateTime time(String time) {
+        return ZonedDateTime.parse(time);
+    }
+}
@@ -0,0 +1,67 @@
+package me.norax.nyaBackup.helpers;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks that the bucket holds callers to its rate and counts every byte.
+ */
+public class TokenBucketTest {
+    @Test
+    public void unlimitedNeverWaits() throws Exception {
+        TokenBucket bucket = new TokenBucket(0);
+
+        long start = System.nanoTime();
+        bucket.acquire(1L << 40);
+        bucket.acquire(1L << 40);
+        assertTrue(System.nanoTime() - start < 100_000_000L, "an unlimited bucket slept");
+        assertEquals(2L << 40, bucket.getConsumed());
+    }
+
+    @Test
+    public void callersShareTheRate() throws Exception {
+        // 1 MB/s, two threads taking 200 KB each need about 400ms together
+        TokenBucket bucket = new TokenBucket(1_000_000);
+        Thread other = new Thread(() -> {
+            try {
+                bucket.acquire(200_000);
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+
+        long start = System.nanoTime();
+        other.start();
+        bucket.acquire(200_000);
+        other.join();
+        long millis = (System.nanoTime() - start) / 1_000_000;
+
+        assertTrue(millis >= 150, "took only " + millis + "ms");
+        assertTrue(millis < 2_000, "took " + millis + "ms");
+        assertEquals(400_000L, bucket.getConsumed());
+    }
+
+    @Test
+    public void debtIsPaidAtTheRate() throws Exception {
+        TokenBucket bucket = new TokenBucket(1_000_000);
+
+        long start = System.nanoTime();
+        bucket.acquire(300_000);
+        long millis = (System.nanoTime() - start) / 1_000_000;
+
+        assertTrue(millis >= 250, "took only " + millis + "ms");
+        assertTrue(millis < 2_000, "took " + millis + "ms");
+    }
+
+    @Test
+    public void removingTheLimitStopsWaiting() throws Exception {
+        TokenBucket bucket = new TokenBucket(1_000);
+        bucket.setRate(0);
+
+        long start = System.nanoTime();
+        bucket.acquire(1_000_000);
+        assertTrue(System.nanoTime() - start < 100_000_000L, "slept after the limit was removed");
+        assertEquals(0.0, bucket.getRate());
+    }
+}
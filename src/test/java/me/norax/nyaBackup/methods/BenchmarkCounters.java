@@ -0,0 +1,29 @@
+package me.norax.nyaBackup.methods;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Extra results next to ops/s: JMH divides these by the measured time, so
+ * {@code megabytes} reads as MB/s and {@code files} as files/s.
+ */
+@State(Scope.Thread)
+@AuxCounters(AuxCounters.Type.OPERATIONS)
+public class BenchmarkCounters {
+    public double megabytes;
+    public long files;
+
+    @Setup(Level.Iteration)
+    public void reset() {
+        megabytes = 0;
+        files = 0;
+    }
+
+    void add(long bytes, int fileCount) {
+        megabytes += bytes / (1024.0 * 1024.0);
+        files += fileCount;
+    }
+}
@@ -0,0 +1,69 @@
+package me.norax.nyaBackup.methods;
+
+import me.norax.nyaBackup.TestServer;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.codehaus.plexus.util.FileUtils.deleteDirectory;
+
+/**
+ * Hashing a server jar sized file (random bytes, like a jar they don't compress)
+ * with each {@code optimizations.cache_hash} algorithm.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class CacherBenchmark {
+    @Param({"sha256", "crc32c"})
+    public String algorithm;
+
+    @Param({"64"})
+    public int sizeMb;
+
+    private Path serverDir;
+    private TestServer server;
+    private Cacher cacher;
+    private Path file;
+    private long size;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        serverDir = Files.createTempDirectory("nyabackup-bench");
+        file = serverDir.resolve("paper.jar");
+        Random random = new Random(42);
+        byte[] block = new byte[1024 * 1024];
+        try (OutputStream out = Files.newOutputStream(file)) {
+            for (int i = 0; i < sizeMb; i++) {
+                random.nextBytes(block);
+                out.write(block);
+            }
+        }
+        size = Files.size(file);
+
+        server = new TestServer(serverDir, Map.of("optimizations.cache_hash", algorithm));
+        cacher = new Cacher(server.getPlugin());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        server.close();
+        deleteDirectory(serverDir.toFile());
+    }
+
+    @Benchmark
+    public String calculateFileHash(BenchmarkCounters counters) throws IOException {
+        String hash = cacher.calculateFileHash(file);
+        counters.add(size, 1);
+        return hash;
+    }
+}
@@ -0,0 +1,89 @@
+package me.norax.nyaBackup.methods;
+
+import me.norax.nyaBackup.NyaBackup;
+import me.norax.nyaBackup.SyntheticWorld;
+import me.norax.nyaBackup.TestServer;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.codehaus.plexus.util.FileUtils.deleteDirectory;
+
+/**
+ * Creating and extracting a whole backup of a generated world with every compressor.
+ * The dedup store keeps its chunks between invocations, so its createBackup is
+ * the steady state of a server that is backed up regularly.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 10)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+public class CompressorBenchmark {
+    @Param({"zip", "store", "7z", "zstd", "dedup"})
+    public String method;
+
+    @Param({"small"})
+    public String world;
+
+    private Path serverDir;
+    private TestServer server;
+    private Compressor compressor;
+    private List<Path> files;
+    private Path archive;
+    private Path restoreDir;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        serverDir = Files.createTempDirectory("nyabackup-bench");
+        SyntheticWorld.named(world).generate(serverDir, 42);
+        server = new TestServer(serverDir, Map.of());
+
+        NyaBackup plugin = server.getPlugin();
+        compressor = switch (method) {
+            case "zip" -> new ZipCompressor(plugin, false);
+            case "store" -> new ZipCompressor(plugin, true);
+            case "7z" -> new SevenZipCompressor(plugin, new ZipCompressor(plugin, false));
+            case "zstd" -> new ZstdCompressor(plugin);
+            default -> new ChunkStore(plugin);
+        };
+        files = new FileIndex(plugin).scan().files();
+
+        Path backupDir = Files.createDirectories(plugin.getDataFolder().toPath().resolve("backups"));
+        archive = backupDir.resolve("bench" + compressor.getExtension());
+        restoreDir = plugin.getDataFolder().toPath().resolve("restore");
+        compressor.createBackup(archive, serverDir, files, "bench");
+    }
+
+    @Setup(Level.Invocation)
+    public void cleanRestoreDir() throws IOException {
+        deleteDirectory(restoreDir.toFile());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        server.close();
+        deleteDirectory(serverDir.toFile());
+    }
+
+    @Benchmark
+    public long createBackup(BenchmarkCounters counters) throws IOException {
+        long size = compressor.createBackup(archive, serverDir, files, "bench");
+        counters.add(size, files.size());
+        return size;
+    }
+
+    @Benchmark
+    public long extractBackup(BenchmarkCounters counters) throws IOException {
+        RestoreProgress progress = new RestoreProgress("bench");
+        compressor.extractBackup(archive, restoreDir, name -> true, RestoreLimits.offline(), progress);
+        counters.add(progress.getDone(), files.size());
+        return progress.getDone();
+    }
+}
@@ -0,0 +1,69 @@
+package me.norax.nyaBackup.methods;
+
+import me.norax.nyaBackup.SyntheticWorld;
+import me.norax.nyaBackup.TestServer;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.codehaus.plexus.util.FileUtils.deleteDirectory;
+
+/**
+ * Listing the files of a backup. {@code fullScan} starts from the saved index
+ * like the first backup after a restart, {@code rescan} is every backup after
+ * that: a full walk again, or only the watched changes with {@code performance.watch_files}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class FileIndexBenchmark {
+    @Param({"false", "true"})
+    public boolean watch;
+
+    @Param({"medium"})
+    public String world;
+
+    private Path serverDir;
+    private TestServer server;
+    private FileIndex index;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        serverDir = Files.createTempDirectory("nyabackup-bench");
+        SyntheticWorld.named(world).generate(serverDir, 42);
+        server = new TestServer(serverDir, Map.of("performance.watch_files", watch));
+
+        index = new FileIndex(server.getPlugin());
+        index.commit(index.scan());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        index.close();
+        server.close();
+        deleteDirectory(serverDir.toFile());
+    }
+
+    @Benchmark
+    public FileIndex.Scan fullScan(BenchmarkCounters counters) throws IOException {
+        try (FileIndex fresh = new FileIndex(server.getPlugin())) {
+            FileIndex.Scan scan = fresh.scan();
+            counters.add(0, scan.files().size());
+            return scan;
+        }
+    }
+
+    @Benchmark
+    public FileIndex.Scan rescan(BenchmarkCounters counters) throws IOException {
+        FileIndex.Scan scan = index.scan();
+        counters.add(0, scan.files().size());
+        return scan;
+    }
+}
@@ -0,0 +1,52 @@
+package me.norax.nyaBackup.methods;
+
+import me.norax.nyaBackup.TestServer;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.lang.reflect.Field;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.WatchKey;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks that folders excluded as {@code folder/**} are pruned from the walk
+ * instead of being walked and filtered file by file.
+ */
+public class FileIndexTest {
+    @TempDir
+    Path serverDir;
+
+    @Test
+    public void excludedFoldersAreNeverWalked() throws Exception {
+        Files.createDirectories(serverDir.resolve("world/region"));
+        Files.writeString(serverDir.resolve("world/level.dat"), "level");
+        Files.writeString(serverDir.resolve("server.properties"), "motd=test");
+        Files.createDirectories(serverDir.resolve("plugins/NyaBackup/backups/nested"));
+        Files.writeString(serverDir.resolve("plugins/NyaBackup/backups/nested/old.zip"), "backup");
+
+        try (TestServer server = new TestServer(serverDir, Map.of(
+                "optimizations.exclude", List.of("plugins/NyaBackup/**"),
+                "performance.watch_files", true))) {
+            FileIndex index = new FileIndex(server.getPlugin());
+            FileIndex.Scan scan = index.scan();
+
+            Path dataFolder = serverDir.resolve("plugins/NyaBackup");
+            assertTrue(scan.files().contains(serverDir.resolve("server.properties")), "server.properties was not scanned");
+            assertTrue(scan.files().stream().noneMatch(file -> file.startsWith(dataFolder)), "an excluded file was scanned");
+
+            // every folder the walk went into is watched
+            Field watchedDirs = FileIndex.class.getDeclaredField("watchedDirs");
+            watchedDirs.setAccessible(true);
+            @SuppressWarnings("unchecked")
+            Map<WatchKey, Path> watched = (Map<WatchKey, Path>) watchedDirs.get(index);
+            assertTrue(watched.containsValue(serverDir.resolve("plugins")), "plugins was not walked");
+            assertTrue(watched.values().stream().noneMatch(dir -> dir.startsWith(dataFolder)), dataFolder + " was walked");
+            index.close();
+        }
+    }
+}